@@ -186,7 +186,7 @@ class AmqpProtocolHandler extends ProtocolHandler {
   var amqp_connection:AmqpTransport = _
   var amqp_trace = false
 
-  def codec = connection.transport.getProtocolCodec.asInstanceOf[AmqpProtocolCodec]
+  def codec = connection.protocol_codec(classOf[AmqpProtocolCodec])
 
   def proton = amqp_connection.connection()
 
@@ -339,12 +339,14 @@ class AmqpProtocolHandler extends ProtocolHandler {
                       async_die("Authorization failure", "Not authorized to connect to virtual host '%s'. Principals=%s".format(virtual_host.id, security_context.principal_dump))
                     } else {
                       resume_read
+                      connection.handshake_completed
                       proton.open()
                       onComplete.run()
                     }
                   }
               }
             } else {
+              connection.handshake_completed
               proton.open()
               onComplete.run()
             }
@@ -487,7 +489,7 @@ class AmqpProtocolHandler extends ProtocolHandler {
         if (value != null) {
           val selector = value.getDescribed().toString()
           try {
-            (selector, SelectorParser.parse(selector))
+            (selector, SelectorParser.compile(selector))
           } catch {
             case e: FilterException =>
               sender.setSource(null)
@@ -913,6 +915,12 @@ class AmqpProtocolHandler extends ProtocolHandler {
       null
     }
 
+    override def jms_selector_expression = if (selector != null) {
+      selector._2
+    } else {
+      null
+    }
+
     override def user = security_context.user
 
     var starting_seq: Long = 0L
@@ -26,11 +26,52 @@ import org.apache.activemq.apollo.dto._
 import org.apache.activemq.apollo.util.{Dispatched, Log, BaseService}
 import scala.Some
 import java.security.cert.X509Certificate
+import java.lang.management.ManagementFactory
+import org.apache.activemq.apollo.broker.transport.CoalescingProtocolCodec
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-object Connection extends Log
+object Connection extends Log {
+
+  /**
+   * When the apollo.connection.accounting system property is set to true,
+   * connections estimate how much CPU time and heap the processing of their
+   * transport events uses.  Only one in ACCOUNTING_SAMPLE_RATE events gets
+   * measured.
+   */
+  val accounting = java.lang.Boolean.getBoolean("apollo.connection.accounting")
+  val ACCOUNTING_SAMPLE_RATE = 16
+
+  private val thread_mx_bean = ManagementFactory.getThreadMXBean
+  private val cpu_time_supported = try {
+    thread_mx_bean.isCurrentThreadCpuTimeSupported
+  } catch {
+    case _:Throwable => false
+  }
+
+  // Only some JVMs can tell us how much a thread allocated.
+  private val allocation_mx_bean = try {
+    thread_mx_bean match {
+      case x:com.sun.management.ThreadMXBean if x.isThreadAllocatedMemorySupported => x
+      case _ => null
+    }
+  } catch {
+    case _:Throwable => null
+  }
+
+  def current_cpu_time = if( cpu_time_supported ) {
+    thread_mx_bean.getCurrentThreadCpuTime
+  } else {
+    System.nanoTime
+  }
+
+  def current_allocated_bytes = if( allocation_mx_bean!=null ) {
+    allocation_mx_bean.getThreadAllocatedBytes(Thread.currentThread.getId)
+  } else {
+    0L
+  }
+}
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -54,6 +95,27 @@ abstract class Connection() extends BaseService with Dispatched {
   var transport:Transport = null
   var transport_sink:TransportSink = null
 
+  // estimated nanoseconds of CPU time and bytes allocated processing transport events.
+  var cpu_time = 0L
+  var allocated_bytes = 0L
+  private var accounting_counter = 0
+
+  protected def accounted(func: =>Unit):Unit = {
+    accounting_counter += 1
+    if( !accounting || accounting_counter % ACCOUNTING_SAMPLE_RATE != 0 ) {
+      func
+    } else {
+      val cpu_start = current_cpu_time
+      val allocated_start = current_allocated_bytes
+      try {
+        func
+      } finally {
+        cpu_time += (current_cpu_time - cpu_start) * ACCOUNTING_SAMPLE_RATE
+        allocated_bytes += (current_allocated_bytes - allocated_start) * ACCOUNTING_SAMPLE_RATE
+      }
+    }
+  }
+
   override protected def _start(on_completed:Task) = {
     stopped = false
     transport_sink = new TransportSink(transport)
@@ -62,14 +124,18 @@ abstract class Connection() extends BaseService with Dispatched {
       def onTransportFailure(error: IOException) = Connection.this.on_transport_failure(error)
       def onTransportDisconnected = Connection.this.on_transport_disconnected
       def onTransportConnected =  Connection.this.on_transport_connected
-      def onTransportCommand(command: AnyRef) =  Connection.this.on_transport_command(command)
-      def onRefill =  Connection.this.on_refill
+      def onTransportCommand(command: AnyRef) = accounted { Connection.this.on_transport_command(command) }
+      def onRefill = accounted { Connection.this.on_refill }
     });
     transport.start(on_completed)
   }
 
   override protected def _stop(on_completed:Task) = {
     stopped = true
+    val coalescing = protocol_codec(classOf[CoalescingProtocolCodec])
+    if( coalescing!=null ) {
+      coalescing.stop
+    }
     transport.stop(on_completed)
   }
 
@@ -111,7 +177,27 @@ class BrokerConnection(var connector: Connector, val id:Long) extends Connection
   var protocol_handler: ProtocolHandler = null;
 
   def session_id = Option(protocol_handler).flatMap(_.session_id)
-  
+
+  private var handshaking = true
+
+  /**
+   * How long it took to detect the protocol the client is using, in
+   * milliseconds.
+   */
+  var protocol_detect_time = 0L
+
+  /**
+   * Protocol handlers call this once the client has connected and
+   * been authenticated so the connector stops counting the connection
+   * against it's handshake limit.
+   */
+  def handshake_completed:Unit = {
+    if( handshaking ) {
+      handshaking = false
+      connector.handshake_completed(this)
+    }
+  }
+
   override def toString = "id: "+id.toString
 
   protected override  def _start(on_completed:Task) = {
@@ -160,6 +246,9 @@ class BrokerConnection(var connector: Connector, val id:Long) extends Connection
     result.remote_address = Option(transport.getRemoteAddress).map(_.toString).getOrElse(null)
     result.local_address = Option(transport.getLocalAddress).map(_.toString).getOrElse(null)
     result.protocol_session_id = protocol_handler.session_id.getOrElse(null)
+    result.protocol_detect_time = protocol_detect_time
+    result.cpu_time = cpu_time
+    result.allocated_bytes = allocated_bytes
     val wf = transport.getProtocolCodec
     if( wf!=null ) {
       result.write_counter = wf.getWriteCounter
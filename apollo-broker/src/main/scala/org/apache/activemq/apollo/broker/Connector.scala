@@ -25,7 +25,9 @@ import java.net.SocketAddress
 import org.apache.activemq.apollo.util.{Log, ClassFinder}
 import org.apache.activemq.apollo.dto._
 import security.SecuredResource
-import transport.TransportFactory
+import transport.{CoalescingProtocolCodec, TransportFactory}
+import java.util.concurrent.TimeUnit
+import scala.collection.mutable.HashSet
 
 /**
  * <p>
@@ -41,6 +43,7 @@ trait Connector extends BaseService with SecuredResource {
   def broker:Broker
   def id:String
   def stopped(connection:BrokerConnection):Unit
+  def handshake_completed(connection:BrokerConnection):Unit = {}
   def config:ConnectorTypeDTO
   def accepted:LongCounter
   def connected:LongCounter
@@ -138,6 +141,15 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
   var dead_read_counter:Long = 0
   var dead_write_counter:Long = 0
 
+  // ids of the connections which have not completed their protocol handshake.
+  val handshaking = HashSet[Long]()
+  var shed_counter = 0L
+  var throttled_counter = 0L
+  var accept_suspended = false
+  var accept_tokens = 0.0
+  var accept_tokens_at = 0L
+  var accept_retry_scheduled = false
+
   def status = {
     val result = new ConnectorStatusDTO
     result.id = id.toString
@@ -147,6 +159,10 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
     result.connected = connected.get
     result.protocol = Option(config.protocol).getOrElse("any")
     result.local_address = Option(socket_address).map(_.toString).getOrElse("any")
+    result.handshaking = handshaking.size
+    result.shed_counter = shed_counter
+    result.throttled_counter = throttled_counter
+    result.accepting = service_state.is_started && !accept_suspended
 
     result.messages_sent = dead_messages_sent
     result.messages_received = dead_messages_received
@@ -174,8 +190,28 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
     }
 
     def onAccept(transport: Transport): Unit = {
+      if( at_connection_limit || at_handshake_limit || out_of_accept_tokens ) {
+        // We got it before the transport server got suspended. Close it before
+        // it costs us anything.
+        shed_counter += 1
+        transport.setDispatchQueue(dispatch_queue)
+        transport.setTransportListener(new DefaultTransportListener)
+        transport.start(^{
+          transport.stop(NOOP)
+        })
+        return
+      }
+      if( config.accept_rate.isDefined ) {
+        accept_tokens -= 1
+      }
+
       if( protocol!=null ) {
-        transport.setProtocolCodec(protocol.createProtocolCodec(AcceptingConnector.this))
+        var codec = protocol.createProtocolCodec(AcceptingConnector.this)
+        val max_write_latency = config.max_write_latency.getOrElse(0)
+        if( max_write_latency > 0 ) {
+          codec = new CoalescingProtocolCodec(codec, max_write_latency)
+        }
+        transport.setProtocolCodec(codec)
       }
 
       accepted.incrementAndGet
@@ -186,6 +222,7 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
       connection.transport = transport
 
       broker.connections.put(connection.id, connection)
+      handshaking += connection.id
       broker.current_period.max_connections = broker.current_period.max_connections.max(broker.connections.size)
       if ( broker.current_period.max_connections > broker.max_connections_in_5min ) {
         // re-tune the buffer settings if max is getting bumped.
@@ -200,11 +237,7 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
         }
       }
 
-      if(at_connection_limit) {
-        // We stop accepting connections at this point.
-        info("Connection limit reached. Clients connected: %d", connected.get)
-        transport_server.suspend
-      }
+      update_accepting
     }
   }
 
@@ -212,6 +245,61 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
     connected.get >= config.connection_limit.getOrElse(Integer.MAX_VALUE)
   }
 
+  def at_handshake_limit = {
+    handshaking.size >= config.handshake_limit.getOrElse(Integer.MAX_VALUE)
+  }
+
+  def out_of_accept_tokens = OptionSupport(config.accept_rate) match {
+    case Some(rate) =>
+      // refill the token bucket for the time that has passed.
+      val burst = config.accept_burst.getOrElse(rate).max(1)
+      val now = System.nanoTime
+      accept_tokens = (accept_tokens + ((now - accept_tokens_at) * rate / 1000000000.0)).min(burst)
+      accept_tokens_at = now
+      accept_tokens < 1
+    case None => false
+  }
+
+  /**
+   * Suspends or resumes accepting connections based on the connection limit,
+   * handshake limit and accept rate.
+   */
+  def update_accepting:Unit = {
+    if( transport_server==null ) {
+      return
+    }
+    val out_of_tokens = out_of_accept_tokens
+    val throttle = at_connection_limit || at_handshake_limit || out_of_tokens
+    if( throttle && !accept_suspended ) {
+      if( at_connection_limit ) {
+        info("Connection limit reached. Clients connected: %d", connected.get)
+      } else {
+        debug("%s connector throttling accepts. Clients handshaking: %d", id, handshaking.size)
+      }
+      accept_suspended = true
+      throttled_counter += 1
+      transport_server.suspend
+    } else if( !throttle && accept_suspended ) {
+      accept_suspended = false
+      transport_server.resume
+    }
+    if( out_of_tokens && !accept_retry_scheduled ) {
+      // check again once the bucket should have a token.
+      accept_retry_scheduled = true
+      val delay = ((1 - accept_tokens) * 1000 / config.accept_rate.get).ceil.toLong.max(1)
+      dispatch_queue.after(delay, TimeUnit.MILLISECONDS) {
+        accept_retry_scheduled = false
+        update_accepting
+      }
+    }
+  }
+
+  override def handshake_completed(connection:BrokerConnection) = dispatch_queue {
+    if( handshaking.remove(connection.id) ) {
+      update_accepting
+    }
+  }
+
   /**
    */
   def update(config: ConnectorTypeDTO, on_completed:Task) = dispatch_queue {
@@ -240,6 +328,10 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
 
     accepted.set(0)
     connected.set(0)
+    handshaking.clear
+    accept_suspended = false
+    accept_tokens = config.accept_rate.map(rate => config.accept_burst.getOrElse(rate).max(1).toDouble).getOrElse(0.0)
+    accept_tokens_at = System.nanoTime
     protocol = ProtocolFactory.get(config.protocol.getOrElse("any")).get
     transport_server = TransportFactory.bind( config.bind )
     transport_server.setDispatchQueue(dispatch_queue)
@@ -317,7 +409,7 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
    * stop tracking them.
    */
   def stopped(connection:BrokerConnection) = dispatch_queue {
-    val at_limit = at_connection_limit
+    handshaking.remove(connection.id)
     if( broker.connections.remove(connection.id).isDefined ) {
       connected.decrementAndGet()
       val status = connection.get_connection_status
@@ -327,9 +419,7 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
         dead_read_counter += status.read_counter
         dead_write_counter += status.write_counter
       }
-      if( at_limit ) {
-        transport_server.resume
-      }
+      update_accepting
     }
   }
 
@@ -18,13 +18,17 @@ package org.apache.activemq.apollo.broker
 
 import _root_.org.fusesource.hawtdispatch._
 import org.fusesource.hawtbuf._
-import org.apache.activemq.apollo.filter.Filterable
+import org.apache.activemq.apollo.filter.{BooleanExpression, Filterable}
 import org.apache.activemq.apollo.broker.store.StoreUOW
 import org.apache.activemq.apollo.util.Log
 import java.util.concurrent.atomic.AtomicReference
 import org.apache.activemq.apollo.broker.protocol.MessageCodec
 
-object DeliveryProducer extends Log
+object DeliveryProducer extends Log {
+  // How many times more traffic a destination has to carry than the
+  // one a producer is collocated with before the producer moves.
+  val COLLOCATION_HYSTERESIS = 2
+}
 
 /**
  * A producer which sends Delivery objects to a delivery consumer.
@@ -47,6 +51,72 @@ trait DeliveryProducer {
     }
   }
 
+  private var collocation_target:DispatchQueue = null
+  private var collocation_rate = 0L
+  private var collocation_reported_at = 0L
+
+  /**
+   * Called periodically, possibly from several threads, with the amount of
+   * data this producer sent towards the candidate dispatch queue over the last
+   * interval.  The producer gets collocated with the candidate that carries
+   * the most traffic, but it only moves away from it's current target once
+   * another candidate carries COLLOCATION_HYSTERESIS times more, so that it
+   * does not keep bouncing between threads.
+   */
+  def collocate_by_rate(candidate:DispatchQueue, rate:Long, interval:Long):Unit = {
+    val now = System.currentTimeMillis
+    val move = synchronized {
+      if( candidate eq collocation_target ) {
+        collocation_rate = rate
+        collocation_reported_at = now
+        false
+      } else {
+        // a target which stopped reporting no longer carries any traffic.
+        val current_rate = if( now - collocation_reported_at > 2*interval ) 0L else collocation_rate
+        if( rate > 0 && (collocation_target==null || rate > current_rate * COLLOCATION_HYSTERESIS) ) {
+          collocation_target = candidate
+          collocation_rate = rate
+          collocation_reported_at = now
+          true
+        } else {
+          false
+        }
+      }
+    }
+    if( move ) {
+      collocate(candidate)
+    }
+  }
+
+}
+
+/**
+ * Collects the candidates producers could be collocated with during one
+ * regroup pass and only keeps the busiest one of each producer, so that
+ * a producer is moved at most once per pass no matter in which order the
+ * candidates were seen.  Not thread safe.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class CollocationPlan(val interval:Long) {
+
+  private val targets = new java.util.LinkedHashMap[DeliveryProducer, (DispatchQueue, Long)]()
+
+  def offer(producer:DeliveryProducer, candidate:DispatchQueue, rate:Long):Unit = {
+    val current = targets.get(producer)
+    if( current==null || rate > current._2 ) {
+      targets.put(producer, (candidate, rate))
+    }
+  }
+
+  def collocate:Unit = {
+    val i = targets.entrySet().iterator()
+    while( i.hasNext ) {
+      val entry = i.next()
+      entry.getKey.collocate_by_rate(entry.getValue._1, entry.getValue._2, interval)
+    }
+    targets.clear()
+  }
 }
 
 /**
@@ -66,6 +136,13 @@ trait DeliveryConsumer extends Retained {
 
   def user:String = null
   def jms_selector:String = null
+
+  /**
+   * The parsed selector of the consumer.  Producers use it to index
+   * their consumers, so matches must never accept a message which
+   * the expression does not match.
+   */
+  def jms_selector_expression:BooleanExpression = null
   def browser = false
   def exclusive = false
   def dispatch_queue:DispatchQueue;
@@ -80,6 +157,7 @@ class DeliveryConsumerFilter(val next:DeliveryConsumer) extends DeliveryConsumer
   override def connection: Option[BrokerConnection] = next.connection
   override def exclusive: Boolean = next.exclusive
   override def jms_selector: String = next.jms_selector
+  override def jms_selector_expression: BooleanExpression = next.jms_selector_expression
   override def receive_buffer_size: Int = next.receive_buffer_size
   override def set_starting_seq(seq: Long) { next.set_starting_seq(seq)  }
   override def start_from_tail: Boolean = next.start_from_tail
@@ -104,6 +182,19 @@ trait DeliverySession extends SessionSink[Delivery] {
   def producer:DeliveryProducer
   def consumer:DeliveryConsumer
   def close:Unit
+
+  private var enqueue_size_at_last_regroup = 0L
+
+  /**
+   * @return the total size of the deliveries accepted since the last time
+   *         this was called.
+   */
+  def regroup_size_delta = {
+    val counter = enqueue_size_counter
+    val rc = counter - enqueue_size_at_last_regroup
+    enqueue_size_at_last_regroup = counter
+    rc
+  }
 }
 
 
@@ -239,6 +330,13 @@ class Delivery {
    */
   var retain:RetainAction = RetainIgnore
 
+  /**
+   * Caches the copy of this delivery which was stamped with a topic's
+   * address so that all the subscriptions of the topic can share it
+   * instead of allocating a copy per subscription.
+   */
+  var topic_copy:Delivery = null
+
 
   def copy() = (new Delivery).set(this)
 
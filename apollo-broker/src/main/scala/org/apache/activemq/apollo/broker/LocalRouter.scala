@@ -28,7 +28,7 @@ import collection.{Iterable, JavaConversions}
 import security.SecuredResource.{TopicKind, QueueKind}
 import security.{SecuredResource, SecurityContext}
 import org.apache.activemq.apollo.dto._
-import scala.collection.mutable.{HashSet, HashMap, LinkedHashMap}
+import scala.collection.mutable.{ListBuffer, HashSet, HashMap, LinkedHashMap}
 
 object DestinationMetricsSupport {
 
@@ -946,51 +946,86 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
   }
 
 
+  val CONNECTION_REGROUP_INTERVAL = 1000L
+
   // Try to periodically re-balance connections so that consumers/producers
   // are grouped onto the same thread.
-  def schedule_connection_regroup:Unit = dispatch_queue.after(1, TimeUnit.SECONDS) {
+  def schedule_connection_regroup:Unit = dispatch_queue.after(CONNECTION_REGROUP_INTERVAL, TimeUnit.MILLISECONDS) {
     if(service_state.is_started) {
       connection_regroup
       schedule_connection_regroup
     }
   }
 
+  /**
+   * Collocates producers and destinations with the peers they exchange the
+   * most data with, based on the traffic seen since the last regroup.  Each
+   * producer ends up on the thread of the destination it feeds the most, and
+   * each queue on the thread of the consumer it delivers the most to.  See
+   * DeliveryProducer.collocate_by_rate for how thrashing is avoided.
+   */
   def connection_regroup = {
-    // this should really be much more fancy.  It should look at the messaging
-    // rates between producers and consumers, look for natural data flow partitions
-    // and then try to equally divide the load over the available processing
-    // threads/cores.
-
 
+    // Producers go with the destination they send the most to.  The
+    // busiest candidate of every producer is picked before any of them
+    // move.
+    val producers = new CollocationPlan(CONNECTION_REGROUP_INTERVAL)
 
-    // For the topics, just collocate the producers onto the first consumer's thread.
+    // For the topics, collocate the producers with the consumer that is
+    // receiving the most data.
     local_topic_domain.destinations.foreach { node =>
 
-      node.consumers.keys.headOption.foreach{ consumer =>
-        node.producers.keys.foreach { r=>
-          r.collocate(consumer.dispatch_queue)
+      var busiest:DeliveryConsumer = null
+      var busiest_rate = 0L
+      val producer_rates = ListBuffer[(DeliveryProducer, Long)]()
+      node.proxy_sessions.foreach { _ match {
+        case session:node.ProxyConsumerSession =>
+          val rate = session.regroup_size_delta
+          if( rate > busiest_rate ) {
+            busiest = session.proxy.consumer
+            busiest_rate = rate
+          }
+        case session =>
+          producer_rates += session.producer -> session.regroup_size_delta
+      }}
+
+      if( busiest!=null ) {
+        producer_rates.foreach { case (producer, rate) =>
+          producers.offer(producer, busiest.dispatch_queue, rate)
         }
       }
     }
 
-
-    local_queue_domain.destinations.foreach { queue=>
+    // The queue rates have to be gathered on the queue's threads, the
+    // producers get collocated once all the queues have reported back.
+    val queues = local_queue_domain.destinations.toList
+    var remaining = queues.size
+    if( remaining == 0 ) {
+      producers.collocate
+    }
+    queues.foreach { queue=>
       queue.dispatch_queue {
 
-        // Collocate the queue's with the first consumer
-        // TODO: change this so it collocates with the fastest consumer.
-
-        queue.all_subscriptions.headOption.map( _._1 ).foreach { consumer=>
-          queue.collocate( consumer.dispatch_queue )
+        // Collocate the queue with the consumer it delivers the most to.
+        val consumers = new CollocationPlan(CONNECTION_REGROUP_INTERVAL)
+        queue.all_subscriptions.foreach { case (consumer, sub) =>
+          if( !sub.browser ) {
+            consumers.offer(queue, consumer.dispatch_queue, sub.avg_enqueue_size_per_interval)
+          }
         }
+        consumers.collocate
 
-        // Collocate all the producers with the queue..
-
-        queue.inbound_sessions.foreach { session =>
-          session.producer.collocate( queue.dispatch_queue )
+        val producer_rates = queue.inbound_sessions.toList.map(session => (session.producer, session.regroup_size_delta))
+        dispatch_queue {
+          producer_rates.foreach { case (producer, rate) =>
+            producers.offer(producer, queue.dispatch_queue, rate)
+          }
+          remaining -= 1
+          if( remaining == 0 ) {
+            producers.collocate
+          }
         }
       }
-
     }
   }
 
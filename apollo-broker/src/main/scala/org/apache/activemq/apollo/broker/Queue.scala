@@ -230,6 +230,15 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     tune_quota = mem_size(update.quota,"-1")
     tune_quota_messages = update.quota_messages.getOrElse(-1L)
 
+    session_manager.fairness = Option(update.producer_fairness).getOrElse("stalls").toLowerCase match {
+      case "stalls" => FairByStalls
+      case "producer" => FairByProducer
+      case "connection" => FairByConnection
+      case _ =>
+        warn("Invalid 'producer_fairness' configured for queue '%s': '%s'", id, update.producer_fairness)
+        FairByStalls
+    }
+
     full_policy = Option(update.full_policy).getOrElse("block").toLowerCase match {
       case "drop head" => DropHead
       case "drop tail" => DropTail
@@ -1106,6 +1115,8 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
   def matches(delivery: Delivery) = filter.matches(delivery.message)
 
+  override def jms_selector_expression = filter
+
   def is_persistent = tune_persistent
 
   class QueueDeliverySession(val producer: DeliveryProducer) extends DeliverySession with SessionSinkFilter[Delivery]{
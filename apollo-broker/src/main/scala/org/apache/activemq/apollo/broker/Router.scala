@@ -23,9 +23,10 @@ import scala.collection.immutable.List
 import security.SecurityContext
 import store.StoreUOW
 import java.util.concurrent.atomic.AtomicReference
-import collection.mutable.ListBuffer
+import collection.mutable.{HashSet, HashMap, ListBuffer}
 import java.util.regex.Pattern
 import java.lang.String
+import org.apache.activemq.apollo.filter.EqualityPredicate
 
 object DestinationAddress {
   
@@ -198,6 +199,89 @@ trait BindableDeliveryProducer extends DeliveryProducer with Retained {
 
 }
 
+/**
+ * Indexes delivery sessions by the equality predicate implied by their
+ * consumer's selector so that a producer only has to evaluate the
+ * selectors of the consumers which could match a delivery.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class DeliverySessionIndex {
+
+  class PropertyIndex(val property:String) {
+    val by_value = HashMap[String, HashSet[DeliverySession]]()
+    // sessions which could also match non-string property values.
+    val converting = HashSet[DeliverySession]()
+    var size = 0
+  }
+
+  val unindexed = HashSet[DeliverySession]()
+  val properties = HashMap[String, PropertyIndex]()
+  val predicates = HashMap[DeliverySession, EqualityPredicate]()
+
+  def is_empty = properties.isEmpty
+
+  def add(session:DeliverySession):Unit = {
+    val expression = session.consumer.jms_selector_expression
+    val predicate = if( expression == null ) null else EqualityPredicate.extract(expression)
+    if( predicate == null ) {
+      unindexed += session
+    } else {
+      import collection.JavaConversions._
+      predicates.put(session, predicate)
+      val index = properties.getOrElseUpdate(predicate.getProperty, new PropertyIndex(predicate.getProperty))
+      index.size += 1
+      if( predicate.isConvertStringExpressions ) {
+        index.converting += session
+      }
+      for( value <- predicate.getValues ) {
+        index.by_value.getOrElseUpdate(value, HashSet[DeliverySession]()) += session
+      }
+    }
+  }
+
+  def remove(session:DeliverySession):Unit = {
+    predicates.remove(session) match {
+      case Some(predicate) =>
+        import collection.JavaConversions._
+        for( index <- properties.get(predicate.getProperty) ) {
+          index.size -= 1
+          if( index.size == 0 ) {
+            properties.remove(predicate.getProperty)
+          } else {
+            index.converting -= session
+            for( value <- predicate.getValues; sessions <- index.by_value.get(value) ) {
+              sessions -= session
+              if( sessions.isEmpty ) {
+                index.by_value.remove(value)
+              }
+            }
+          }
+        }
+      case None =>
+        unindexed -= session
+    }
+  }
+
+  /**
+   * Calls the function with every session which could match the message.
+   */
+  def candidates(message:Message)(func:(DeliverySession)=>Unit):Unit = {
+    unindexed.foreach(func)
+    for( index <- properties.values ) {
+      message.getProperty(index.property) match {
+        case null =>
+        case value:String =>
+          for( sessions <- index.by_value.get(value) ) {
+            sessions.foreach(func)
+          }
+        case _ =>
+          index.converting.foreach(func)
+      }
+    }
+  }
+}
+
 object DeliveryProducerRoute extends Log
 
 /**
@@ -212,6 +296,7 @@ abstract class DeliveryProducerRoute(router:Router) extends Sink[Delivery] with
   def retained = reained_base.retained
 
   var targets = List[DeliverySession]()
+  val target_index = new DeliverySessionIndex
   val store = if(router!=null) {
     router.virtual_host.store
   } else {
@@ -230,6 +315,7 @@ abstract class DeliveryProducerRoute(router:Router) extends Sink[Delivery] with
         val target = connect(x);
         target.refiller = drainer
         targets ::= target
+        target_index.add(target)
       }
     }
   }
@@ -247,6 +333,7 @@ abstract class DeliveryProducerRoute(router:Router) extends Sink[Delivery] with
             drainer.run
           }
         }
+        target_index.remove(x)
         x.close
       }
       rc
@@ -292,7 +379,7 @@ abstract class DeliveryProducerRoute(router:Router) extends Sink[Delivery] with
         copy.message.retain
       }
       
-      targets.foreach { target=>
+      def deliver(target:DeliverySession):Unit = {
 
         // only deliver to matching consumers
         if( target.consumer.matches(copy) ) {
@@ -315,6 +402,13 @@ abstract class DeliveryProducerRoute(router:Router) extends Sink[Delivery] with
         }
       }
 
+      // Use the selector index to skip over the consumers which can't match.
+      if( copy.message!=null && !target_index.is_empty ) {
+        target_index.candidates(copy.message)(deliver)
+      } else {
+        targets.foreach(deliver)
+      }
+
       if( overflowSessions!=Nil ) {
         overflow = copy
       } else {
@@ -19,7 +19,7 @@ package org.apache.activemq.apollo.broker
 import org.fusesource.hawtdispatch._
 import java.util.LinkedList
 import org.fusesource.hawtdispatch.transport.Transport
-import collection.mutable.{ListBuffer, HashSet}
+import collection.mutable.{ListBuffer, HashSet, HashMap}
 import org.apache.activemq.apollo.util.list.{LinkedNodeList, LinkedNode}
 import java.util.concurrent.TimeUnit
 
@@ -338,6 +338,24 @@ trait SessionSinkFilter[T] extends SessionSink[T] with SinkFilter[T] {
   def remaining_capacity = downstream.remaining_capacity
 }
 
+/**
+ * Controls how a SessionSinkMux splits it's size credits between
+ * the sessions which stalled since it's last rebalance.
+ */
+sealed trait SessionFairnessPolicy
+
+/** Sessions get a share proportional to how often they stalled. */
+object FairByStalls extends SessionFairnessPolicy
+
+/** Every stalled session gets the same share. */
+object FairByProducer extends SessionFairnessPolicy
+
+/**
+ * Every producer connection with stalled sessions gets the same share
+ * which is then split evenly between it's stalled sessions.
+ */
+object FairByConnection extends SessionFairnessPolicy
+
 /**
  *  <p>
  * A SinkMux multiplexes access to a target sink so that multiple
@@ -354,6 +372,22 @@ class SessionSinkMux[T](val downstream:Sink[(Session[T], T)], val consumer_queue
   var sessions = HashSet[Session[T]]()
   var overflowed_sessions = new LinkedNodeList[SessionLinkedNode[T]]()
 
+  var fairness:SessionFairnessPolicy = FairByStalls
+
+  // Only the sessions which stalled since the last rebalance take part
+  // in the next one, so a rebalance does not have to visit every session.
+  val stalled_sessions = new LinkedNodeList[SessionLinkedNode[T]]()
+  var total_stalls = 0L
+
+  def stalled(session:Session[T]) = {
+    session.stall_counter += 1
+    total_stalls += 1
+    if( !session.stall_node.isLinked ) {
+      stalled_sessions.addLast(session.stall_node)
+    }
+    schedual_rebalance
+  }
+
   def open(producer_queue:DispatchQueue):SessionSink[T] = {
     val session = new Session[T](this, producer_queue)
     consumer_queue <<| ^{
@@ -371,6 +405,10 @@ class SessionSinkMux[T](val downstream:Sink[(Session[T], T)], val consumer_queue
       session match {
         case s:Session[T] =>
           sessions -= s
+          if( s.stall_node.isLinked ) {
+            s.stall_node.unlink()
+            total_stalls -= s.stall_counter
+          }
           s.close(rejection_handler)
       }
     }
@@ -403,32 +441,52 @@ class SessionSinkMux[T](val downstream:Sink[(Session[T], T)], val consumer_queue
 
   var last_rebalance_ts = time_stamp
   def rebalance_check:Unit = {
-    // only re-balance periodically since it's a bit expensive.
+    // only re-balance periodically so that the bonuses don't jump around.
     var now = time_stamp
-    if ( (now - last_rebalance_ts) > 500 && sessions.size>0) {
-      last_rebalance_ts = now
-      rebalance
+    if ( !stalled_sessions.isEmpty ) {
+      if ( (now - last_rebalance_ts) > 500 ) {
+        last_rebalance_ts = now
+        rebalance
+      } else {
+        // time_stamp is coarse, check again later so that the stalled
+        // sessions don't wait for the next stall to get rebalanced.
+        schedual_rebalance
+      }
     }
   }
 
   def rebalance = {
-    var stalled_sessions = List[Session[T]]()
-    var total_stalls = 0L
-    for ( session <- sessions ) {
-      if ( session.stall_counter > 0) {
-        total_stalls += session.stall_counter
-        stalled_sessions ::= session
+    val stalled = ListBuffer[Session[T]]()
+    while( !stalled_sessions.isEmpty ) {
+      val node = stalled_sessions.getHead
+      node.unlink()
+      stalled += node.session
+    }
+
+    // the number of stalled sessions of each producer connection.
+    val connection_sessions = HashMap[DispatchQueue, Int]()
+    if( fairness == FairByConnection ) {
+      for ( session <- stalled ) {
+        connection_sessions.put(session.producer_queue, connection_sessions.getOrElse(session.producer_queue, 0) + 1)
       }
     }
 
-    for ( session <- stalled_sessions ) {
-      var slice_percent = session.stall_counter.toFloat / total_stalls
-      val new_size_bonus = (size_credits * slice_percent).toInt
+    def slice_percent(session:Session[T]):Float = fairness match {
+      case FairByStalls => session.stall_counter.toFloat / total_stalls
+      case FairByProducer => 1f / stalled.size
+      case FairByConnection => 1f / connection_sessions.size / connection_sessions(session.producer_queue)
+    }
+
+    for ( session <- stalled ) {
+      val new_size_bonus = (size_credits * slice_percent(session)).toInt
       val change = new_size_bonus - session.size_bonus
-      session.stall_counter = 0
       session.size_bonus += change
       session.credit(0, change)
     }
+    for ( session <- stalled ) {
+      session.stall_counter = 0
+    }
+    total_stalls = 0
   }
   downstream.refiller = ^{ drain_overflow }
 
@@ -450,9 +508,6 @@ class SessionSinkMux[T](val downstream:Sink[(Session[T], T)], val consumer_queue
     } else {
       val session = overflowed_sessions.getHead.session
       val value = session.overflow.removeFirst()
-      if( session.stall_counter > 0 ) {
-        schedual_rebalance
-      }
       if( session.overflow.isEmpty ) {
         session.overflow_node.unlink()
       } else {
@@ -480,6 +535,7 @@ class Session[T](mux:SessionSinkMux[T], val producer_queue:DispatchQueue) extend
   // we should think about field padding this object to avoid false sharing on the cache lines.
   val overflow = new LinkedList[T]()
   val overflow_node = SessionLinkedNode[T](Session.this)
+  val stall_node = SessionLinkedNode[T](Session.this)
   var stall_counter = 0
   var size_bonus = 0
 
@@ -492,7 +548,7 @@ class Session[T](mux:SessionSinkMux[T], val producer_queue:DispatchQueue) extend
       }
       overflow.add(value)
       if (stalled) {
-        stall_counter += 1
+        mux.stalled(this)
       }
     }
     mux.drain_overflow
@@ -24,6 +24,13 @@ import org.fusesource.hawtdispatch._
 import collection.mutable.{HashSet, HashMap, ListBuffer}
 import java.lang.Long
 import security.SecuredResource
+import store.{PBSupport, MessagePB}
+import protocol.MessageCodecFactory
+import org.fusesource.hawtbuf.Buffer
+
+object Topic extends Log
+
+import Topic._
 
 /**
  * <p>
@@ -45,6 +52,15 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
   @transient
   var retained_message: Delivery = _
 
+  // The retained message is stored in the host's store so that it
+  // can be recalled across broker restarts.  The following are only
+  // accessed from the dispatch_queue.
+  lazy val retained_key = Buffer.utf8("topic-retained:"+id)
+  var retained_loaded = false
+  var retained_load_waiters = ListBuffer[()=>Unit]()
+  var retained_store_pending = false
+  var retained_store_dirty = false
+
   implicit def from_link(from:LinkDTO):(Long,Long,Long)=(from.enqueue_item_counter, from.enqueue_size_counter, from.enqueue_ts)
   implicit def from_session(from:DeliverySession):(Long,Long,Long)=(from.enqueue_item_counter, from.enqueue_size_counter, from.enqueue_ts)
 
@@ -96,11 +112,9 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
       enqueue_ts = now
       value.retain match {
         case RetainSet =>
-          // TODO: perhaps persist so that we can recall what was
-          // retained across broker restarts.
-          retained_message = value;
+          update_retained(value)
         case RetainRemove =>
-          retained_message = null;
+          update_retained(null)
         case _ =>
       }
       true
@@ -150,10 +164,17 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
     def consumer = session.consumer
 
     def offer(value: Delivery) = {
-      val copy = value.copy();
-      copy.uow = value.uow
-      copy.ack = value.ack
-      copy.sender ::= address
+      // Downstream sessions don't modify the deliveries they are offered,
+      // so all the subscriptions share the same copy unless the producer
+      // route stored the message since the copy was made.
+      var copy = value.topic_copy
+      if( copy==null || (copy.sender.head ne address) || (copy.uow ne value.uow) || copy.storeKey != value.storeKey ) {
+        copy = value.copy();
+        copy.uow = value.uow
+        copy.ack = value.ack
+        copy.sender ::= address
+        value.topic_copy = copy
+      }
       downstream.offer(copy)
     }
   }
@@ -164,8 +185,109 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
     }
   }
 
+  /**
+   * Fans out deliveries to a subset of the topic's consumers from its own
+   * dispatch queue so that the fan-out to a large number of consumers gets
+   * spread across multiple threads.  Producers see the shard as a single
+   * consumer which flow controls them using a credit window.
+   */
+  class FanoutShard(val shard_id:Int) extends BaseRetained with DeliveryConsumer {
+
+    val dispatch_queue = createQueue("topic "+Topic.this.id+" fanout "+shard_id)
+    val proxies = HashSet[ProxyDeliveryConsumer]()
+
+    override def toString = "fanout shard "+shard_id+" of topic "+Topic.this.id
+
+    val route = new DeliveryProducerRoute(router) {
+      val dispatch_queue = FanoutShard.this.dispatch_queue
+    }
+
+    val session_manager:SessionSinkMux[Delivery] = new SessionSinkMux[Delivery](new Sink[(Session[Delivery], Delivery)] {
+      def full = route.full
+      def refiller = route.refiller
+      def refiller_=(value:Task) { route.refiller = value }
+      def offer(value:(Session[Delivery], Delivery)) = {
+        if( route.full ) {
+          false
+        } else {
+          val (session, delivery) = value
+          route.offer(delivery)
+          if( delivery.message!=null ) {
+            delivery.message.release
+          }
+          session_manager.delivered(session, delivery.size)
+          true
+        }
+      }
+    }, dispatch_queue, Delivery, Integer.MAX_VALUE, 1024*64) {
+      override def time_stamp = now
+    }
+
+    def matches(message: Delivery) = true
+    def is_persistent = false
+    def connect(producer: DeliveryProducer) = new FanoutShardSession(producer)
+
+    def bind(proxy:ProxyDeliveryConsumer) = {
+      proxies += proxy
+      route.bind(proxy :: Nil)
+    }
+
+    def unbind(proxy:ProxyDeliveryConsumer) = {
+      proxies -= proxy
+      route.unbind(proxy.consumer :: Nil)
+    }
+
+    /**
+     * Called once the last consumer left the shard and the producers were
+     * told to unbind from it.  The shard goes away once the producer
+     * sessions holding it are closed.
+     */
+    def close = {
+      route.disconnected()
+      release
+    }
+
+    class FanoutShardSession(val producer:DeliveryProducer) extends DeliverySession with SessionSinkFilter[Delivery] {
+      retain
+
+      override def toString = FanoutShard.this.toString
+      def consumer = FanoutShard.this
+
+      val downstream = session_manager.open(producer.dispatch_queue)
+
+      def close = {
+        session_manager.close(downstream, (delivery)=>{
+          // The consumers were unbound from the shard before it was closed.
+          if( delivery.message!=null ) {
+            delivery.message.release
+          }
+        })
+        release
+      }
+
+      def offer(delivery: Delivery) = {
+        if( downstream.full ) {
+          false
+        } else {
+          // Only non persistent consumers get sharded, so the shard
+          // does not need the producer's unit of work.
+          val copy = delivery.copy()
+          if( copy.message!=null ) {
+            copy.message.retain
+          }
+          val rc = downstream.offer(copy)
+          assert(rc, "session should accept since it was not full")
+          true
+        }
+      }
+    }
+  }
+
   val producers = HashMap[BindableDeliveryProducer, LinkDTO]()
   val consumers = HashMap[DeliveryConsumer, ProxyDeliveryConsumer]()
+  var fanout_shards = List[FanoutShard]()
+  val sharded_consumers = HashMap[DeliveryConsumer, FanoutShard]()
+  var fanout_shard_counter = 0
   var durable_subscriptions = ListBuffer[Queue]()
   var idled_at = 0L
   val created_at = now
@@ -381,9 +503,10 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
 
   def bind(address: BindAddress, consumer:DeliveryConsumer):Unit = {
 
-    def send_retained = {
+    def send_retained = load_retained {
       val r = retained_message
-      if (r != null) {
+      // the consumer might have unbound while we were loading the retained message.
+      if (r != null && (consumers.contains(consumer) || topic_queue_consumers.contains(consumer))) {
         val copy = r.copy()
         copy.sender ::= address
 
@@ -463,18 +586,170 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
         }
     }
 
-    send_retained
     val proxy = ProxyDeliveryConsumer(target, link, consumer)
     consumers.put(consumer, proxy)
     topic_metrics.consumer_counter += 1
-    val list = proxy :: Nil
-    producers.keys.foreach({ r=>
-      r.bind(list)
-    })
+    send_retained
+
+    val list:List[DeliveryConsumer] = if( should_shard(target) ) {
+      // Pick the least loaded shard or start a new one.
+      val shard = if( fanout_shards.size < fanout_max_shards ) {
+        fanout_shard_counter += 1
+        val shard = new FanoutShard(fanout_shard_counter)
+        fanout_shards ::= shard
+        shard
+      } else {
+        fanout_shards.minBy(_.proxies.size)
+      }
+      sharded_consumers.put(consumer, shard)
+      val first = shard.proxies.isEmpty
+      shard.bind(proxy)
+      if( first ) shard :: Nil else Nil
+    } else {
+      proxy :: Nil
+    }
+    if( !list.isEmpty ) {
+      producers.keys.foreach({ r=>
+        r.bind(list)
+      })
+    }
     check_idle
   }
 
+  def fanout_max_shards = config.fanout_shards.getOrElse(Runtime.getRuntime.availableProcessors) max 1
+
+  def should_shard(target:DeliveryConsumer) = {
+    val threshold = config.fanout_threshold.getOrElse(0)
+    target match {
+      case queue:Queue => false
+      case _ => threshold > 0 && !target.is_persistent && (consumers.size - sharded_consumers.size) > threshold
+    }
+  }
+
+  /**
+   * Updates the retained message.  Called from the producer's thread, so the
+   * update is applied on the topic's dispatch queue.  Store updates are
+   * coalesced so that only the last retained message gets written when a
+   * topic is getting retained messages published faster than the store can
+   * flush them.
+   */
+  def update_retained(value:Delivery):Unit = {
+    dispatch_queue {
+      retained_message = value
+      if( virtual_host.store!=null ) {
+        // What ever was previously stored has now been replaced.
+        if( !retained_loaded ) {
+          retained_load_completed
+        }
+        retained_store_dirty = true
+        if( !retained_store_pending ) {
+          retained_store_pending = true
+          store_retained
+        }
+      }
+    }
+  }
+
+  def store_retained:Unit = {
+    dispatch_queue.assertExecuting()
+    val store = virtual_host.store
+    if( store==null ) {
+      retained_store_pending = false
+      return
+    }
+    retained_store_dirty = false
+    val uow = store.create_uow()
+    uow.put(retained_key, encode_retained(retained_message))
+    uow.on_flush {
+      dispatch_queue {
+        if( retained_store_dirty ) {
+          store_retained
+        } else {
+          retained_store_pending = false
+        }
+      }
+    }
+    uow.release()
+  }
+
+  def encode_retained(value:Delivery):Buffer = {
+    if( value == null ) {
+      return null
+    }
+    val record = value.createMessageRecord()
+    if( record.direct_buffer!=null ) {
+      // Messages spooled to direct buffers are too big to keep in the map.
+      debug("Not storing the retained message of topic %s since it is using a direct buffer", id)
+      return null
+    }
+    val pb = PBSupport.to_pb(record)
+    pb.setSize(value.size)
+    if( value.expiration!=0 ) {
+      pb.setExpiration(value.expiration)
+    }
+    if( value.persistent ) {
+      pb.setPersistent(true)
+    }
+    pb.freeze().toUnframedBuffer
+  }
+
+  def decode_retained(value:Buffer):Option[Delivery] = {
+    val pb = MessagePB.FACTORY.parseUnframed(value)
+    val record = PBSupport.from_pb(pb)
+    if( pb.getExpiration!=0 && pb.getExpiration <= now ) {
+      return None
+    }
+    MessageCodecFactory(record.codec.toString) match {
+      case Some(codec) =>
+        val delivery = new Delivery
+        delivery.message = codec.decode(record)
+        delivery.size = pb.getSize
+        delivery.expiration = pb.getExpiration
+        delivery.persistent = pb.getPersistent
+        delivery.retain = RetainSet
+        Some(delivery)
+      case None =>
+        warn("Cannot load the retained message of topic %s, unknown codec: %s", id, record.codec)
+        None
+    }
+  }
+
+  /**
+   * Executes the function once the retained message has been loaded
+   * from the store.  The store is only accessed on the first call.
+   */
+  def load_retained(func: =>Unit):Unit = {
+    dispatch_queue.assertExecuting()
+    val store = virtual_host.store
+    if( retained_loaded || store==null ) {
+      func
+    } else {
+      retained_load_waiters += (()=>func)
+      if( retained_load_waiters.size == 1 ) {
+        store.get_map_entry(retained_key) { value =>
+          dispatch_queue {
+            // A producer may have updated the retained message while we were loading.
+            if( !retained_loaded ) {
+              for( buffer <- value; delivery <- decode_retained(buffer) ) {
+                retained_message = delivery
+              }
+              retained_load_completed
+            }
+          }
+        }
+      }
+    }
+  }
+
+  def retained_load_completed = {
+    retained_loaded = true
+    val waiters = retained_load_waiters
+    retained_load_waiters = ListBuffer()
+    waiters.foreach(_())
+  }
+
   def unbind (consumer:DeliveryConsumer, persistent:Boolean) = {
+    var closed_shard:FanoutShard = null
     val list = topic_queue_consumers.remove(consumer) match {
       case Some(consumer)=>
         topic_queue.unbind(List(consumer))
@@ -509,9 +784,21 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
         List()
       case None =>
         consumers.remove(consumer) match {
-          case Some(consumer)=>
-            add_dequeue_counters(topic_metrics, consumer.link)
-            List(consumer.consumer)
+          case Some(proxy)=>
+            add_dequeue_counters(topic_metrics, proxy.link)
+            sharded_consumers.remove(consumer) match {
+              case Some(shard) =>
+                shard.unbind(proxy)
+                if( shard.proxies.isEmpty ) {
+                  fanout_shards = fanout_shards.filterNot(_ eq shard)
+                  closed_shard = shard
+                  List(shard)
+                } else {
+                  List()
+                }
+              case None =>
+                List(proxy.consumer)
+            }
           case None =>
             List()
         }
@@ -519,6 +806,9 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
     for( producer <- producers.keys ) {
      producer.unbind(list)
     }
+    if( closed_shard!=null ) {
+      closed_shard.close
+    }
     check_idle
   }
 
@@ -551,23 +841,28 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
     }
     producers.put(producer, link)
     topic_metrics.producer_counter += 1
-    var targets:List[DeliveryConsumer] = producer_tracker :: consumers.values.toList
+    producer.bind(producer_targets)
+    check_idle
+  }
+
+  def producer_targets = {
+    var targets:List[DeliveryConsumer] = producer_tracker :: fanout_shards
+    for( (consumer, proxy) <- consumers ) {
+      if( !sharded_consumers.contains(consumer) ) {
+        targets ::= proxy
+      }
+    }
     if( topic_queue !=null ) {
       targets ::= topic_queue
     }
-    producer.bind(targets )
-    check_idle
+    targets
   }
 
   def disconnect (producer:BindableDeliveryProducer) = {
     for(link <- producers.remove(producer) ) {
       add_enqueue_counters(topic_metrics, link)
     }
-    var targets:List[DeliveryConsumer] = producer_tracker :: consumers.values.toList
-    if( topic_queue !=null ) {
-      targets ::= topic_queue
-    }
-    producer.unbind(targets)
+    producer.unbind(producer_targets)
     check_idle
   }
 
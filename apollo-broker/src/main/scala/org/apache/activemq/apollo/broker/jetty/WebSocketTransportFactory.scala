@@ -36,7 +36,7 @@ import java.nio.channels._
 import scala.collection.mutable.ListBuffer
 import java.util.concurrent.{ExecutorService, Executor, ArrayBlockingQueue}
 import org.fusesource.hawtdispatch.transport.ProtocolCodec.BufferState
-import org.fusesource.hawtbuf.{AsciiBuffer, Buffer}
+import org.fusesource.hawtbuf.{UTF8Buffer, Buffer}
 import java.io.{EOFException, IOException}
 import java.security.cert.X509Certificate
 import org.apache.activemq.apollo.broker.web.AllowAnyOriginFilter
@@ -252,6 +252,8 @@ object WebSocketTransportFactory extends TransportFactory.Provider with Log {
 
     // Seems most browsers don't support binary transfers yet, so only enable it if
     // the client is requesting them or the transport server was configured to use them.
+    // Clients which send binary frames also get sent binary frames.
+    @volatile
     var binary_transfers = Option(request.getHeader("binary_transfers")).map(_=="true").getOrElse(server.binary_transfers)
 
     def getProtocolCodec = protocolCodec
@@ -287,6 +289,10 @@ object WebSocketTransportFactory extends TransportFactory.Provider with Log {
   
     protected def _stop(on_completed: Task) = {
       inbound_dispatch_queue.resume()
+      if( outbound_full ) {
+        outbound_full = false
+        inbound_dispatch_queue.resume()
+      }
       outbound_executor {
         // Wakes up any blocked reader thread..
         inbound.synchronized {
@@ -335,8 +341,7 @@ object WebSocketTransportFactory extends TransportFactory.Provider with Log {
 
     def onMessage(str: String): Unit = {
       // Convert string messages to bytes messages..  our codecs just work with bytes..
-      var buffer = new AsciiBuffer(str)
-      onMessage(buffer.data, buffer.offset, buffer.length)
+      on_frame(new UTF8Buffer(str))
     }
 
     var inbound_capacity_remaining = 0;
@@ -354,15 +359,21 @@ object WebSocketTransportFactory extends TransportFactory.Provider with Log {
     def suspendRead() = inbound_dispatch_queue.suspend()
 
     def onMessage(data: Array[Byte], offset: Int, length: Int): Unit = {
+      binary_transfers = true
+      // Jetty re-uses the array once we return.
+      on_frame(new Buffer(data, offset, length).deepCopy())
+    }
+
+    protected def on_frame(buffer:Buffer): Unit = {
       inbound.synchronized {
         // flow control check..
         while (inbound_capacity_remaining <= 0 && service_state.is_upward ) {
           inbound.wait();
         }
-        inbound_capacity_remaining -= length;
+        inbound_capacity_remaining -= buffer.length;
       }
       inbound_dispatch_queue {
-        inbound += new Buffer(data, offset, length)
+        inbound += buffer
         drain_inbound
       }
     }
@@ -531,6 +542,10 @@ object WebSocketTransportFactory extends TransportFactory.Provider with Log {
 
     var outbound_capacity_remaining = 1024 * 64;
 
+    // Set while reads are suspended because Jetty has not caught up
+    // sending the frames we have already handed it.
+    var outbound_full = false
+
     val outbound_executor = new SerialExecutor(blockingExecutor) {
       var outbound_drained = 0
       override def drained  = {
@@ -538,6 +553,12 @@ object WebSocketTransportFactory extends TransportFactory.Provider with Log {
         outbound_drained = 0
         dispatch_queue {
           outbound_capacity_remaining += amount
+          if( outbound_full && outbound_capacity_remaining > 0 ) {
+            outbound_full = false
+            resumeRead()
+          }
+          // the codec may still be holding data it could not write before.
+          flush
           transportListener.onRefill()
         }
       }
@@ -551,16 +572,22 @@ object WebSocketTransportFactory extends TransportFactory.Provider with Log {
 
       if( outbound_capacity_remaining > 0 ) {
         outbound_capacity_remaining -= remaining;
-        var buffer = new Buffer(buf.array(), buf.arrayOffset(), buf.remaining())
+        if( outbound_capacity_remaining <= 0 && !outbound_full ) {
+          // Stop taking in new work until Jetty catches up.
+          outbound_full = true
+          suspendRead()
+        }
+        // The codec re-uses it's buffer once we return, so hand Jetty a copy.
+        val buffer = new Buffer(remaining)
+        buf.get(buffer.data)
         outbound_executor {
           if( !binary_transfers ) {
-            connection.sendMessage(buffer.ascii().toString)
+            connection.sendMessage(buffer.utf8().toString)
           } else {
             connection.sendMessage(buffer.data, buffer.offset, buffer.length)
           }
           outbound_executor.outbound_drained += remaining
         }
-        buf.position(buf.position()+ remaining);
         return remaining
 
       } else {
@@ -62,7 +62,7 @@ object AnyProtocol extends BaseProtocol {
 
 }
 
-case class ProtocolDetected(id:String, codec:ProtocolCodec)
+case class ProtocolDetected(id:String, codec:ProtocolCodec, detect_time:Long=0)
 
 class AnyProtocolCodec(val connector:Connector) extends ProtocolCodec {
 
@@ -79,24 +79,41 @@ class AnyProtocolCodec(val connector:Connector) extends ProtocolCodec {
 
   var next:ProtocolCodec = _
 
+  val created_at = System.currentTimeMillis()
 
+  // A view of the bytes read so far, re-used across partial reads.
+  private val header = new Buffer(buffer.array(), 0, 0)
 
   def read: AnyRef = {
     if (next != null) {
       throw new IllegalStateException
     }
 
-    channel.read(buffer)
-    val buff = new Buffer(buffer.array(), 0, buffer.position())
+    if( channel.read(buffer) <= 0 ) {
+      // nothing new to look at.
+      return null
+    }
+    header.length = buffer.position()
+
+    var exhausted = false
     protocols.foreach {protocol =>
-      if (protocol.matchesIdentification(buff)) {
+      if (protocol.matchesIdentification(header)) {
         next = protocol.createProtocolCodec(connector)
         AnyProtocol.change_protocol_codec(transport, next)
-        next.unread(buff.toByteArray)
-        return ProtocolDetected(protocol.id, next)
+        next.unread(header.toByteArray)
+        return ProtocolDetected(protocol.id, next, System.currentTimeMillis() - created_at)
+      }
+      if( protocol.maxIdentificaionLength <= header.length ) {
+        exhausted = true
       }
     }
-    if (buffer.position() == buffer.capacity) {
+
+    // Once we have read enough bytes for a protocol to decide and it did
+    // not match, more bytes will not change it's mind, so stop asking it.
+    if( exhausted ) {
+      protocols = protocols.filter(_.maxIdentificaionLength > header.length)
+    }
+    if (protocols.isEmpty || buffer.position() == buffer.capacity) {
       throw new IOException("Could not identify the protocol.")
     }
     return null
@@ -148,6 +165,7 @@ class AnyProtocolHandler extends ProtocolHandler {
     discriminated = true
 
     var protocol: ProtocolDetected = command.asInstanceOf[ProtocolDetected];
+    connection.protocol_detect_time = protocol.detect_time
     val protocol_handler = ProtocolFactory.get(protocol.id) match {
       case Some(x) => x.createProtocolHandler
       case None =>
@@ -21,7 +21,7 @@ import java.nio.ByteBuffer
 import org.fusesource.hawtdispatch._
 import java.nio.channels.{DatagramChannel, WritableByteChannel, ReadableByteChannel}
 import java.net.SocketAddress
-import org.apache.activemq.apollo.dto.{ProtocolDTO, UdpDTO, AcceptingConnectorDTO}
+import org.apache.activemq.apollo.dto.{ProtocolDTO, UdpDTO, UdpConnectionStatusDTO, AcceptingConnectorDTO}
 import org.fusesource.hawtbuf.{AsciiBuffer, Buffer}
 import java.util.Map.Entry
 import org.apache.activemq.apollo.util._
@@ -33,7 +33,13 @@ import org.apache.activemq.apollo.broker.BlackHoleSink
 
 case class UdpMessage(from:SocketAddress, buffer:ByteBuffer)
 
+object UdpProtocolCodec {
+  // The largest payload a datagram can carry.
+  val MAX_DATAGRAM_SIZE = 64*1024
+}
+
 class UdpProtocolCodec extends ProtocolCodec {
+  import UdpProtocolCodec._
 
   def protocol = "udp"
 
@@ -47,15 +53,22 @@ class UdpProtocolCodec extends ProtocolCodec {
   var read_counter = 0L
   var read_read_size = 0L
 
+  // Datagrams get received into this buffer and then copied into
+  // a buffer that's just big enough to hold them.
+  val receive_buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE)
+
   def read: AnyRef = {
     if (channel == null) {
       throw new IllegalStateException
     }
-    val buffer = ByteBuffer.allocate(channel.socket().getReceiveBufferSize)
-    val from = channel.receive(buffer)
+    receive_buffer.clear()
+    val from = channel.receive(receive_buffer)
     if( from == null ) {
       null
     } else {
+      receive_buffer.flip()
+      val buffer = ByteBuffer.allocate(receive_buffer.remaining())
+      buffer.put(receive_buffer)
       buffer.flip()
       read_read_size = buffer.remaining()
       read_counter += read_read_size
@@ -127,15 +140,19 @@ abstract class UdpProtocolHandler extends ProtocolHandler {
   var buffer_size = 640*1024
   var connection_log:Log = _
   var messages_received = 0L
+  var drop_counter = 0L
+  var overrun_counter = 0L
   var waiting_on = "client request"
 
   def broker = connection.connector.broker
   def queue = connection.dispatch_queue
 
   override def create_connection_status = {
-    var rc = super.create_connection_status
+    var rc = new UdpConnectionStatusDTO
     rc.waiting_on = waiting_on
     rc.messages_received = messages_received
+    rc.drop_counter = drop_counter
+    rc.overrun_counter = overrun_counter
     rc
   }
 
@@ -171,12 +188,23 @@ abstract class UdpProtocolHandler extends ProtocolHandler {
     override def onCacheEviction(eldest: Entry[(VirtualHost, AsciiBuffer, SecurityContext#Key), UdpProducerRoute]) = {
       val (host, address, key) = eldest.getKey
       val route = eldest.getValue
+      if( route eq last_route ) {
+        last_route = null
+      }
       host.dispatch_queue {
         host.router.disconnect(route.addresses, route)
       }
     }
   }
 
+  // Datagrams usually arrive in runs for the same destination, so remember
+  // the last route used to skip the route cache lookup for those.
+  private var last_route:UdpProducerRoute = null
+  private var last_host:VirtualHost = null
+  private var last_address:AsciiBuffer = null
+  private var last_sc_key:SecurityContext#Key = null
+  private var last_route_hits = 0
+
   override def on_transport_command(command: AnyRef):Unit = {
     decode(command.asInstanceOf[UdpMessage]) match {
       case Some(msg) =>
@@ -188,6 +216,16 @@ abstract class UdpProtocolHandler extends ProtocolHandler {
         }
         val security_context = msg.security_context
         var sc_key = if( security_context!=null) security_context.to_key else null
+        if( last_route!=null && (host eq last_host) && address == last_address && sc_key == last_sc_key ) {
+          // Every so often touch the cache entry so the busiest route
+          // does not look like the least recently used one.
+          last_route_hits += 1
+          if( (last_route_hits & 0xFF) == 0 ) {
+            producerRoutes.get((host, address, sc_key))
+          }
+          last_route.send(msg)
+          return
+        }
         var route = producerRoutes.get((host, address, sc_key));
         if( route == null ) {
           try {
@@ -196,14 +234,12 @@ abstract class UdpProtocolHandler extends ProtocolHandler {
             case e:Throwable =>
               // We could run into a error like the address not parsing
               debug(e, "Could not create the producer route")
+              drop_counter += 1
               return
           }
           producerRoutes.put((host, address, sc_key), route)
 
-          def fail_connect = {
-            // Just drop messages..
-            route.sink_switch.downstream = Some(BlackHoleSink())
-          }
+          def fail_connect = route.drop_all
 
           def continue_connect = host.dispatch_queue {
             host.router.connect(route.addresses, route, security_context) match {
@@ -233,9 +269,14 @@ abstract class UdpProtocolHandler extends ProtocolHandler {
           }
         }
 
+        last_route = route
+        last_host = host
+        last_address = address
+        last_sc_key = sc_key
         route.send(msg)
 
       case None =>
+        drop_counter += 1
     }
   }
 
@@ -261,10 +302,21 @@ abstract class UdpProtocolHandler extends ProtocolHandler {
       sink_switch.downstream = Some(this)
     }
 
+    // Used when the route could not be connected, just drop the messages.
+    def drop_all = {
+      sink_switch.downstream = Some(new BlackHoleSink[Delivery]() {
+        override def offer(value: Delivery) = {
+          drop_counter += 1
+          true
+        }
+      })
+    }
+
     def send(frame:DecodedUdpMessage) = {
       // Drop older entries to make room for this new one..
       while( inbound_queue_size >= buffer_size ) {
         inbound_queue.removeFirst
+        overrun_counter += 1
       }
       
       inbound_queue_size += frame.size
@@ -21,11 +21,18 @@ import java.lang.Boolean
 import org.apache.activemq.apollo.dto.AccessRuleDTO
 import java.util.regex.Pattern
 import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.ConcurrentHashMap
 import org.apache.activemq.apollo.broker._
 import org.apache.activemq.apollo.util.Log
 
 object SecuredResource {
-  case class SecurityRules(version:Long, rules: Seq[(String,SecurityContext)=>Option[Boolean]])
+  case class SecurityRules(version:Long, rules: Seq[(String,SecurityContext)=>Option[Boolean]]) {
+    // the decisions made so far keyed by the principal set id and action.
+    val decisions = new ConcurrentHashMap[(Long, String), Boolean]()
+  }
+
+  // caps how many decisions get cached per resource.
+  val MAX_CACHED_DECISIONS = 1024
 
   val ADMIN   = "admin"
   val MONITOR = "monitor"
@@ -303,6 +310,20 @@ object Authorizer {
         resource.rules_cache = cache
       }
 
+      // The decision only depends on the principals and the connector.
+      val key = (ctx.principal_set_id, action)
+      var rc = cache.decisions.get(key)
+      if( rc == null ) {
+        rc = decide(ctx, action, cache)
+        if( cache.decisions.size >= MAX_CACHED_DECISIONS ) {
+          cache.decisions.clear()
+        }
+        cache.decisions.put(key, rc)
+      }
+      rc
+    }
+
+    def decide(ctx:SecurityContext, action:String, cache:SecurityRules):Boolean = {
       // Now we process the rules that are specific to the resource.
       for( rule <- cache.rules ) {
         rule(action, ctx) match {
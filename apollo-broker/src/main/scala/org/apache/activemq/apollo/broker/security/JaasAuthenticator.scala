@@ -27,10 +27,14 @@ import org.apache.activemq.jaas._
 import org.apache.activemq.apollo.broker.Broker.BLOCKABLE_THREAD_POOL
 import org.fusesource.hawtdispatch._
 import org.apache.activemq.apollo.dto.AuthenticationDTO
-import org.apache.activemq.apollo.util.Log
+import org.apache.activemq.apollo.util.{LRUCache, Log}
+import org.apache.activemq.apollo.util.OptionSupport._
 import collection.JavaConversions._
 import javax.security.auth.login._
 import javax.security.auth.message.AuthException
+import javax.security.auth.Subject
+import java.net.InetSocketAddress
+import java.security.{SecureRandom, MessageDigest}
 
 /**
  * <p>
@@ -43,6 +47,19 @@ object JaasAuthenticator extends Log {
   val _log = new ThreadLocal[Log]()
   def broker_log = Option(_log.get())
 
+  case class CacheKey(user:String, credentials:String, local_host:String, remote_host:String)
+
+  /**
+   * A cached login.  Holds the logged in subject or the reported
+   * failure.
+   */
+  case class CachedLogin(expires:Long, subject:Subject, failure:String)
+
+  def host(address:java.net.SocketAddress) = address match {
+    case null => null
+    case x:InetSocketAddress => Option(x.getAddress).map(_.getHostAddress).getOrElse(x.getHostName)
+    case x => x.toString
+  }
 }
 
 
@@ -53,18 +70,95 @@ object JaasAuthenticator extends Log {
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 class JaasAuthenticator(val config: AuthenticationDTO, val log:Log) extends Authenticator {
+  import JaasAuthenticator._
 
   val jass_realm = Option(config.domain).getOrElse("apollo")
   val user_principal_kinds = config.user_principal_kinds()
   val acl_principal_kinds = config.acl_principal_kinds().toSet
 
+  val cache_ttl = config.cache_ttl.map(_ * 1000L)
+  val failure_cache_ttl = config.failure_cache_ttl.map(_ * 1000L)
+  val cache = if( cache_ttl.isDefined || failure_cache_ttl.isDefined ) {
+    new LRUCache[CacheKey, CachedLogin](config.cache_size.getOrElse(1000))
+  } else {
+    null
+  }
+
+  // so that the cache keys can't be used to guess the passwords.
+  private val salt = {
+    val rc = new Array[Byte](16)
+    new SecureRandom().nextBytes(rc)
+    rc
+  }
+
   /*
    * The 'BLOCKABLE_THREAD_POOL ! { ... }' magic makes the code block
    * execute on the global thread pool since JAAS requests could
    * potentially perform a blocking wait (e.g. LDAP request).
    */
-  def authenticate(security_ctx: SecurityContext)(cb:(String)=>Unit) = BLOCKABLE_THREAD_POOL {
-    cb(_authenticate(security_ctx))
+  def authenticate(security_ctx: SecurityContext)(cb:(String)=>Unit) = {
+    val key = if( cache!=null ) cache_key(security_ctx) else null
+    val cached = if( key!=null ) {
+      cache.synchronized {
+        val rc = cache.get(key)
+        if( rc!=null && rc.expires <= System.currentTimeMillis() ) {
+          cache.remove(key)
+          null
+        } else {
+          rc
+        }
+      }
+    } else {
+      null
+    }
+
+    if( cached!=null ) {
+      if( cached.failure!=null ) {
+        cb(cached.failure)
+      } else {
+        // each connection gets it's own copy since logging out clears the subject.
+        val subject = cached.subject
+        security_ctx.subject = new Subject(false, subject.getPrincipals, subject.getPublicCredentials, subject.getPrivateCredentials)
+        cb(null)
+      }
+    } else {
+      BLOCKABLE_THREAD_POOL {
+        val failure = _authenticate(security_ctx)
+        if( key!=null ) {
+          val ttl = if( failure==null ) cache_ttl else failure_cache_ttl
+          for( ttl <- ttl ) {
+            val subject = if( failure==null ) {
+              val s = security_ctx.subject
+              new Subject(true, s.getPrincipals, s.getPublicCredentials, s.getPrivateCredentials)
+            } else {
+              null
+            }
+            cache.synchronized {
+              cache.put(key, CachedLogin(System.currentTimeMillis() + ttl, subject, failure))
+            }
+          }
+        }
+        cb(failure)
+      }
+    }
+  }
+
+  def cache_key(security_ctx: SecurityContext) = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update(salt)
+    def update(value:String) = {
+      if( value!=null ) {
+        digest.update(value.getBytes("UTF-8"))
+      }
+      digest.update(0.toByte)
+    }
+    update(security_ctx.password)
+    update(security_ctx.sso_token)
+    if( security_ctx.certificates!=null ) {
+      security_ctx.certificates.foreach(x=> digest.update(x.getEncoded))
+    }
+    val credentials = digest.digest().map("%02x".format(_)).mkString
+    CacheKey(security_ctx.user, credentials, host(security_ctx.local_address), host(security_ctx.remote_address))
   }
 
   /**
@@ -21,10 +21,36 @@ import javax.security.auth.Subject
 import java.security.cert.X509Certificate
 import java.net.SocketAddress
 import org.apache.activemq.apollo.broker.Broker.BLOCKABLE_THREAD_POOL
+import org.apache.activemq.apollo.util.LRUCache
 import org.fusesource.hawtdispatch._
 import javax.security.auth.login.LoginContext
 import scala.collection.mutable.ListBuffer
 
+object SecurityContext {
+
+  // caps how many principal sets get interned.
+  val MAX_PRINCIPAL_SETS = 10000
+
+  private var principal_set_counter = 0L
+  private[security] val principal_set_ids = new LRUCache[(String, Set[Principal]), java.lang.Long](MAX_PRINCIPAL_SETS)
+
+  /**
+   * Gives equal principal sets (of contexts connected through the same
+   * connector) the same id so that access decisions can be cached by id.
+   */
+  def principal_set_id(connector_id:String, principals:Set[Principal]):Long = principal_set_ids.synchronized {
+    val key = (connector_id, principals)
+    val rc = principal_set_ids.get(key)
+    if( rc!=null ) {
+      rc.longValue
+    } else {
+      principal_set_counter += 1
+      principal_set_ids.put(key, principal_set_counter)
+      principal_set_counter
+    }
+  }
+}
+
 /**
  * <p>
  * </p>
@@ -83,8 +109,24 @@ class SecurityContext {
   private var _principals = Set[Principal]()
   def principals = _principals
 
+  private var _principal_set_id = -1L
+  private var _principal_set_connector:String = _
+
+  /**
+   * An id which is the same for all the contexts which have the
+   * same principals and connector.
+   */
+  def principal_set_id = {
+    if( _principal_set_id == -1 || _principal_set_connector != connector_id ) {
+      _principal_set_connector = connector_id
+      _principal_set_id = SecurityContext.principal_set_id(connector_id, _principals)
+    }
+    _principal_set_id
+  }
+
   def subject_= (value:Subject) {
     _subject = value
+    _principal_set_id = -1
     _principals = Set()
     if( value!=null ) {
       import collection.JavaConversions._
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.transport
+
+import java.util.concurrent.TimeUnit
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtdispatch.transport.{Transport, WrappingProtocolCodec, ProtocolCodec}
+import org.fusesource.hawtdispatch.transport.ProtocolCodec.BufferState
+
+/**
+ * <p>
+ * Holds back flushes of the wrapped codec for up to max_latency microseconds
+ * so that the frames encoded in the meantime go out in a few large socket
+ * writes instead of many small ones.  The wrapped codec still gets flushed
+ * right away once it's write buffer is full or once a previous flush could
+ * not write everything.
+ * </p>
+ * <p>
+ * While a flush is held back the transport is told the codec is empty so
+ * that it keeps asking the producers for more frames instead of waiting on
+ * socket writability.  The held back data is written by the scheduled flush
+ * or, at the latest, by the flush done when the connection stops.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class CoalescingProtocolCodec(codec:ProtocolCodec, val max_latency:Long) extends WrappingProtocolCodec {
+
+  setNext(codec)
+
+  var transport:Transport = _
+
+  private var flush_scheduled = false
+  private var flush_now = false
+  private var draining = false
+  private var stopped = false
+
+  override def setTransport(value: Transport) = {
+    transport = value
+    super.setTransport(value)
+  }
+
+  override def flush:BufferState = {
+    if( stopped || flush_now || draining || getNext.full ) {
+      val rc = getNext.flush
+      draining = rc != BufferState.EMPTY
+      rc
+    } else {
+      if( !flush_scheduled ) {
+        flush_scheduled = true
+        transport.getDispatchQueue.after(max_latency, TimeUnit.MICROSECONDS) {
+          // The connection may have moved to another queue in the meantime.
+          transport.getDispatchQueue {
+            flush_scheduled = false
+            if( !stopped ) {
+              flush_now = true
+              try {
+                transport.flush
+              } finally {
+                flush_now = false
+              }
+            }
+          }
+        }
+      }
+      BufferState.EMPTY
+    }
+  }
+
+  /**
+   * Writes out any held back data.  Called on the transport's dispatch
+   * queue before the transport gets stopped, later flushes are not
+   * held back anymore.
+   */
+  def stop:Unit = {
+    if( !stopped ) {
+      stopped = true
+      if( flush_scheduled ) {
+        transport.flush
+      }
+    }
+  }
+
+}
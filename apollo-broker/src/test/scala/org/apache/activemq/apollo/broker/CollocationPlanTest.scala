@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtdispatch._
+
+/**
+ * <p>
+ * Exercises the candidate selection done by LocalRouter.connection_regroup.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class CollocationPlanTest extends FunSuiteSupport with ShouldMatchers {
+
+  class TestProducer(name:String) extends DeliveryProducer {
+    val dispatch_queue = createQueue(name)
+    var moves = 0
+    override def collocate(value: DispatchQueue) = {
+      moves += 1
+      super.collocate(value)
+    }
+  }
+
+  // A consumer or queue dispatch queue running on it's own 'thread' queue.
+  def candidate(thread:DispatchQueue) = {
+    val rc = createQueue("candidate")
+    rc.setTargetQueue(thread)
+    rc
+  }
+
+  test("topic producers move once, to the busiest destination") {
+    val thread1 = createQueue("thread1")
+    val thread2 = createQueue("thread2")
+    val producer = new TestProducer("producer")
+
+    // the producer sends to two topics, the busiest consumer of
+    // each one is on a different thread.
+    val plan = new CollocationPlan(1000)
+    plan.offer(producer, candidate(thread1), 10)
+    plan.offer(producer, candidate(thread2), 100)
+    plan.collocate
+
+    producer.moves should be(1)
+    producer.dispatch_queue.getTargetQueue should be theSameInstanceAs(thread2)
+  }
+
+  test("queues go with their busiest consumer, not the first one") {
+    val thread1 = createQueue("thread1")
+    val thread2 = createQueue("thread2")
+    val queue = new TestProducer("queue")
+
+    val plan = new CollocationPlan(1000)
+    plan.offer(queue, candidate(thread1), 1)
+    plan.offer(queue, candidate(thread2), 50)
+    plan.offer(queue, candidate(thread1), 5)
+    plan.collocate
+
+    queue.moves should be(1)
+    queue.dispatch_queue.getTargetQueue should be theSameInstanceAs(thread2)
+  }
+
+  test("idle candidates don't move a producer") {
+    val thread1 = createQueue("thread1")
+    val producer = new TestProducer("producer")
+
+    val plan = new CollocationPlan(1000)
+    plan.offer(producer, candidate(thread1), 0)
+    plan.collocate
+
+    producer.moves should be(0)
+  }
+
+  test("a producer only moves to a candidate carrying much more traffic") {
+    val thread1 = createQueue("thread1")
+    val thread2 = createQueue("thread2")
+    val on_thread1 = candidate(thread1)
+    val on_thread2 = candidate(thread2)
+    val producer = new TestProducer("producer")
+
+    val plan = new CollocationPlan(1000)
+    plan.offer(producer, on_thread1, 100)
+    plan.collocate
+    producer.moves should be(1)
+
+    // not enough more traffic to be worth the move.
+    plan.offer(producer, on_thread2, 150)
+    plan.collocate
+    producer.moves should be(1)
+    producer.dispatch_queue.getTargetQueue should be theSameInstanceAs(thread1)
+
+    plan.offer(producer, on_thread2, 250)
+    plan.collocate
+    producer.moves should be(2)
+    producer.dispatch_queue.getTargetQueue should be theSameInstanceAs(thread2)
+  }
+
+}
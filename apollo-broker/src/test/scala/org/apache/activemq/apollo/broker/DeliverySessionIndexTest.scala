@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.fusesource.hawtdispatch._
+import collection.mutable.ListBuffer
+
+/**
+ * <p>
+ * Checks that the selector index of a DeliveryProducerRoute only skips
+ * the consumers which can't match, also after consumers go away.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class DeliverySessionIndexTest extends FunSuiteSupport with ShouldMatchers {
+
+  class TestMessage(properties:Map[String, AnyRef]) extends BaseRetained with Message {
+    def codec = null
+    def getProperty(name: String) = properties.get(name).getOrElse(null)
+    def getLocalConnectionId = null
+    def getBodyAs[T](toType : Class[T]) = null.asInstanceOf[T]
+  }
+
+  class TestConsumer(val name:String, selector:String) extends BaseRetained with DeliveryConsumer {
+    val dispatch_queue = createQueue(name)
+    val expression = if( selector==null ) null else SelectorParser.parse(selector)
+    val received = ListBuffer[Message]()
+    var sessions = List[TestSession]()
+    var evaluated = 0
+
+    override def jms_selector = selector
+    override def jms_selector_expression = expression
+    def is_persistent = false
+    def matches(delivery: Delivery) = {
+      evaluated += 1
+      expression==null || expression.matches(delivery.message)
+    }
+    def connect(producer: DeliveryProducer) = {
+      val rc = new TestSession(producer, this)
+      sessions ::= rc
+      rc
+    }
+  }
+
+  class TestSession(val producer:DeliveryProducer, val consumer:TestConsumer) extends DeliverySession {
+    var refiller:Task = NOOP
+    var closed = false
+    var offered = 0
+    def close = closed = true
+    def full = false
+    def offer(value: Delivery) = {
+      offered += 1
+      consumer.received += value.message
+      true
+    }
+    def enqueue_item_counter = offered.toLong
+    def enqueue_size_counter = 0L
+    def enqueue_ts = 0L
+    def remaining_capacity = Int.MaxValue
+  }
+
+  class TestRoute extends DeliveryProducerRoute(null) {
+    val dispatch_queue = createQueue("route")
+  }
+
+  def send(route:TestRoute, properties:(String, AnyRef)*) = {
+    val delivery = new Delivery
+    delivery.message = new TestMessage(properties.toMap)
+    route.dispatch_queue.future {
+      route.offer(delivery)
+    }.await() should be(true)
+    delivery.message
+  }
+
+  // waits for the route to process the binds and unbinds queued so far.
+  def sync(route:TestRoute) = route.dispatch_queue.future(route.targets.size).await()
+
+  test("messages only reach the consumers whose selectors match") {
+    val route = new TestRoute
+    val red = new TestConsumer("red", "color = 'red'")
+    val blue = new TestConsumer("blue", "color = 'blue' AND size > 5")
+    val any = new TestConsumer("any", "color IN ('red', 'blue')")
+    val all = new TestConsumer("all", null)
+    route.bind(List(red, blue, any, all))
+    sync(route) should be(4)
+
+    val m1 = send(route, "color"->"red")
+    val m2 = send(route, "color"->"blue", "size"->new java.lang.Integer(10))
+    val m3 = send(route, "color"->"green")
+    val m4 = send(route)
+
+    red.received.toList should be(List(m1))
+    blue.received.toList should be(List(m2))
+    any.received.toList should be(List(m1, m2))
+    all.received.toList should be(List(m1, m2, m3, m4))
+
+    // The index skips the selectors which can't match.
+    red.evaluated should be(1)
+    blue.evaluated should be(1)
+    any.evaluated should be(2)
+    all.evaluated should be(4)
+  }
+
+  test("unbound consumers stop receiving") {
+    val route = new TestRoute
+    val red1 = new TestConsumer("red1", "color = 'red'")
+    val red2 = new TestConsumer("red2", "color = 'red'")
+    val blue = new TestConsumer("blue", "color = 'blue'")
+    val all = new TestConsumer("all", null)
+    route.bind(List(red1, red2, blue, all))
+    sync(route) should be(4)
+
+    route.unbind(List(red1, all))
+    sync(route) should be(2)
+    red1.sessions.head.closed should be(true)
+    all.sessions.head.closed should be(true)
+
+    val m1 = send(route, "color"->"red")
+    val m2 = send(route, "color"->"blue")
+    red1.received.toList should be(Nil)
+    all.received.toList should be(Nil)
+    red2.received.toList should be(List(m1))
+    blue.received.toList should be(List(m2))
+
+    // Dropping the last consumer on a value drops it from the index.
+    route.unbind(List(red2))
+    sync(route) should be(1)
+    send(route, "color"->"red")
+    red2.received.toList should be(List(m1))
+    route.target_index.properties("color").by_value.contains("red") should be(false)
+  }
+
+  test("routes fall back to the target list once the indexed consumers are gone") {
+    val route = new TestRoute
+    val red = new TestConsumer("red", "color = 'red'")
+    val other = new TestConsumer("other", "size > 5")
+    route.bind(List(red, other))
+    sync(route) should be(2)
+
+    route.unbind(List(red))
+    sync(route) should be(1)
+    route.target_index.is_empty should be(true)
+
+    val m1 = send(route, "color"->"red", "size"->new java.lang.Integer(10))
+    red.received.toList should be(Nil)
+    other.received.toList should be(List(m1))
+
+    // and go back to the index when a new one binds.
+    val blue = new TestConsumer("blue", "color = 'blue'")
+    route.bind(List(blue))
+    sync(route) should be(2)
+    val m2 = send(route, "color"->"blue")
+    blue.received.toList should be(List(m2))
+    other.received.toList should be(List(m1))
+  }
+
+}
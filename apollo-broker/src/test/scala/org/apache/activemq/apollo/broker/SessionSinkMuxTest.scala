@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.TimeUnit._
+
+object SessionSinkMuxTest {
+  @volatile
+  var clock = 0L
+
+  object IntSizer extends Sizer[Int] {
+    def size(value: Int) = value
+  }
+}
+
+/**
+ * <p>
+ * Checks how a SessionSinkMux splits it's size credits between the
+ * sessions which stalled.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SessionSinkMuxTest extends FunSuiteSupport with ShouldMatchers {
+  import SessionSinkMuxTest._
+
+  val SIZE_CREDITS = 1200
+
+  class TestMux(policy:SessionFairnessPolicy) extends SessionSinkMux[Int](new Sink[(Session[Int], Int)] {
+    var refiller:Task = NOOP
+    def full = false
+    def offer(value: (Session[Int], Int)) = true
+  }, createQueue("consumer"), IntSizer, 100, SIZE_CREDITS) {
+    fairness = policy
+    override def time_stamp = clock
+  }
+
+  def on_consumer_queue[T](mux:TestMux)(func: =>T):T = mux.consumer_queue.future(func).await()
+
+  test("producer fairness gives every stalled session the same share") {
+    val mux = new TestMux(FairByProducer)
+    val connection1 = createQueue("connection 1")
+    val connection2 = createQueue("connection 2")
+    val sessions = List(mux.open(connection1), mux.open(connection1), mux.open(connection2)).map(_.asInstanceOf[Session[Int]])
+
+    val bonuses = on_consumer_queue(mux) {
+      mux.stalled(sessions(0))
+      mux.stalled(sessions(0))
+      mux.stalled(sessions(1))
+      mux.stalled(sessions(2))
+      mux.rebalance
+      sessions.map(_.size_bonus)
+    }
+    bonuses should be(List(400, 400, 400))
+  }
+
+  test("connection fairness splits the credits between connections first") {
+    val mux = new TestMux(FairByConnection)
+    val connection1 = createQueue("connection 1")
+    val connection2 = createQueue("connection 2")
+    val sessions = List(mux.open(connection1), mux.open(connection1), mux.open(connection2)).map(_.asInstanceOf[Session[Int]])
+
+    val bonuses = on_consumer_queue(mux) {
+      sessions.foreach(mux.stalled(_))
+      mux.rebalance
+      sessions.map(_.size_bonus)
+    }
+    bonuses should be(List(300, 300, 600))
+  }
+
+  test("stall fairness gives the sessions which stall more a bigger share") {
+    val mux = new TestMux(FairByStalls)
+    val connection1 = createQueue("connection 1")
+    val sessions = List(mux.open(connection1), mux.open(connection1)).map(_.asInstanceOf[Session[Int]])
+
+    val bonuses = on_consumer_queue(mux) {
+      for( i <- 0 until 3 ) {
+        mux.stalled(sessions(0))
+      }
+      mux.stalled(sessions(1))
+      mux.rebalance
+      sessions.map(_.size_bonus)
+    }
+    bonuses should be(List(900, 300))
+  }
+
+  test("a skipped rebalance gets rescheduled while sessions are stalled") {
+    clock = 0L
+    val mux = new TestMux(FairByProducer)
+    val connection1 = createQueue("connection 1")
+    val session = mux.open(connection1).asInstanceOf[Session[Int]]
+
+    // too soon after the last rebalance.
+    val bonus = on_consumer_queue(mux) {
+      mux.stalled(session)
+      mux.rebalance_check
+      session.size_bonus
+    }
+    bonus should be(SIZE_CREDITS)
+
+    // let the rebalance scheduled by the stall pass while the
+    // time stamp has not moved.
+    Thread.sleep(700)
+    clock = 1000L
+    within(5, SECONDS) {
+      on_consumer_queue(mux) {
+        mux.stalled_sessions.isEmpty
+      } should be(true)
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.security
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.jaas.UserPrincipal
+import javax.security.auth.Subject
+import SecuredResource._
+import Authorizer._
+
+/**
+ * <p>
+ * Checks that the access decisions cached by the RulesAuthorizer are
+ * reused and get thrown away when the access rules change.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class AuthorizerTest extends FunSuiteSupport with ShouldMatchers {
+
+  class TestResource extends SecuredResource {
+    def resource_kind = QueueKind
+    def id = "test"
+  }
+
+  def context(connector:String, users:String*) = {
+    val rc = new SecurityContext
+    rc.connector_id = connector
+    val subject = new Subject
+    users.foreach(x=> subject.getPrincipals.add(new UserPrincipal(x)))
+    rc.subject = subject
+    rc
+  }
+
+  // An authorizer which allows the given user and counts how many times
+  // it's rule gets evaluated.
+  class CountingRules(version:Long, user:String) {
+    var evaluations = 0
+    val allow = (ctx:SecurityContext) => {
+      evaluations += 1
+      ctx.principals.find(_.getName == user).isDefined
+    }
+    val authorizer = RulesAuthorizer(version, Array(ResourceMatcher(Nil, null, Some(allow), None)))
+  }
+
+  test("repeated checks are served from the decision cache") {
+    val rules = new CountingRules(1, "chirino")
+    val resource = new TestResource
+
+    rules.authorizer.can(context("tcp", "chirino"), SEND, resource) should be(true)
+    rules.evaluations should be(1)
+
+    // Other contexts with the same principals use the cached decision.
+    rules.authorizer.can(context("tcp", "chirino"), SEND, resource) should be(true)
+    rules.authorizer.can(context("tcp", "chirino"), SEND, resource) should be(true)
+    rules.evaluations should be(1)
+
+    // but other actions, principals or connectors don't.
+    rules.authorizer.can(context("tcp", "chirino"), RECEIVE, resource) should be(true)
+    rules.evaluations should be(2)
+    rules.authorizer.can(context("tcp", "guest"), SEND, resource) should be(false)
+    rules.evaluations should be(3)
+    rules.authorizer.can(context("ssl", "chirino"), SEND, resource) should be(true)
+    rules.evaluations should be(4)
+  }
+
+  test("a new rules version invalidates the cached decisions") {
+    val resource = new TestResource
+    val ctx = context("tcp", "chirino")
+
+    val rules1 = new CountingRules(Authorizer.version_counter.incrementAndGet(), "chirino")
+    rules1.authorizer.can(ctx, SEND, resource) should be(true)
+    rules1.authorizer.can(ctx, SEND, resource) should be(true)
+    rules1.evaluations should be(1)
+
+    // Like a config update, the new rules no longer allow the user.
+    val rules2 = new CountingRules(Authorizer.version_counter.incrementAndGet(), "guest")
+    rules2.authorizer.can(ctx, SEND, resource) should be(false)
+    rules2.evaluations should be(1)
+    rules2.authorizer.can(ctx, SEND, resource) should be(false)
+    rules2.evaluations should be(1)
+  }
+
+  test("the decisions cached per resource are bounded") {
+    val rules = new CountingRules(1, "chirino")
+    val resource = new TestResource
+    for( i <- 0 until MAX_CACHED_DECISIONS*2 ) {
+      rules.authorizer.can(context("tcp", "user"+i), SEND, resource) should be(false)
+      resource.rules_cache.decisions.size should be <= (MAX_CACHED_DECISIONS)
+    }
+  }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.security
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.jaas.{GroupPrincipal, UserPrincipal}
+import javax.security.auth.Subject
+import java.security.Principal
+
+/**
+ * <p>
+ * Checks how SecurityContext interns principal sets into the ids the
+ * access decisions get cached by.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SecurityContextTest extends FunSuiteSupport with ShouldMatchers {
+
+  def context(connector:String, principals:Principal*) = {
+    val rc = new SecurityContext
+    rc.connector_id = connector
+    val subject = new Subject
+    principals.foreach(subject.getPrincipals.add(_))
+    rc.subject = subject
+    rc
+  }
+
+  test("equal principal sets share an id") {
+    val ctx1 = context("tcp", new UserPrincipal("chirino"), new GroupPrincipal("admins"))
+    val ctx2 = context("tcp", new GroupPrincipal("admins"), new UserPrincipal("chirino"))
+    ctx1.principal_set_id should be(ctx2.principal_set_id)
+  }
+
+  test("different principal sets never share an id") {
+    val ids = List(
+      context("tcp", new UserPrincipal("chirino")),
+      context("tcp", new UserPrincipal("guest")),
+      context("tcp", new UserPrincipal("chirino"), new GroupPrincipal("admins")),
+      // same name, but a different kind of principal.
+      context("tcp", new GroupPrincipal("chirino")),
+      context("tcp"),
+      // same principals, but from another connector.
+      context("ssl", new UserPrincipal("chirino"))
+    ).map(_.principal_set_id)
+    ids.distinct.size should be(ids.size)
+  }
+
+  test("the id follows changes to the subject and connector") {
+    val ctx = context("tcp", new UserPrincipal("chirino"))
+    val id = ctx.principal_set_id
+
+    ctx.connector_id = "ssl"
+    ctx.principal_set_id should not be(id)
+
+    ctx.connector_id = "tcp"
+    ctx.principal_set_id should be(id)
+
+    val subject = new Subject
+    subject.getPrincipals.add(new UserPrincipal("guest"))
+    ctx.subject = subject
+    ctx.principal_set_id should not be(id)
+  }
+
+  test("the interned principal sets are bounded") {
+    import SecurityContext._
+    val first = principal_set_id("tcp", Set(new UserPrincipal("lru-0")))
+    val ids = for( i <- 0 until MAX_PRINCIPAL_SETS + 100 ) yield {
+      principal_set_id("tcp", Set(new UserPrincipal("lru-"+i)))
+    }
+    principal_set_ids.synchronized {
+      principal_set_ids.size should be <= (MAX_PRINCIPAL_SETS)
+    }
+
+    // An evicted set gets a new id which is not shared with any other set.
+    val again = principal_set_id("tcp", Set(new UserPrincipal("lru-0")))
+    again should not be(first)
+    ids.contains(again) should be(false)
+  }
+
+}
@@ -59,6 +59,36 @@ public class AcceptingConnectorDTO extends ConnectorTypeDTO {
     @XmlAttribute(name="send_buffer_size")
     public String send_buffer_size;
 
+    /**
+     * The maximum number of connections per second the connector will accept.  If not set,
+     * then there is no limit.
+     */
+    @XmlAttribute(name="accept_rate")
+    public Integer accept_rate;
+
+    /**
+     * The number of connections which can be accepted in a burst before the accept_rate
+     * kicks in.  Defaults to the accept_rate.
+     */
+    @XmlAttribute(name="accept_burst")
+    public Integer accept_burst;
+
+    /**
+     * The maximum number of accepted connections which can be still be doing their
+     * protocol handshake (detecting the protocol, authenticating etc.) before the
+     * connector stops accepting connections.  If not set, then there is no limit.
+     */
+    @XmlAttribute(name="handshake_limit")
+    public Integer handshake_limit;
+
+    /**
+     * The maximum number of microseconds a connection can hold back a socket write
+     * so that it can be combined with the writes of the frames that follow it.  If
+     * not set, then writes are not held back.
+     */
+    @XmlAttribute(name="max_write_latency")
+    public Integer max_write_latency;
+
     /**
      * A broker accepts connections via it's configured connectors.
      */
@@ -83,6 +113,14 @@ public class AcceptingConnectorDTO extends ConnectorTypeDTO {
             return false;
         if (send_buffer_size != null ? !send_buffer_size.equals(that.send_buffer_size) : that.send_buffer_size != null)
             return false;
+        if (accept_rate != null ? !accept_rate.equals(that.accept_rate) : that.accept_rate != null)
+            return false;
+        if (accept_burst != null ? !accept_burst.equals(that.accept_burst) : that.accept_burst != null)
+            return false;
+        if (handshake_limit != null ? !handshake_limit.equals(that.handshake_limit) : that.handshake_limit != null)
+            return false;
+        if (max_write_latency != null ? !max_write_latency.equals(that.max_write_latency) : that.max_write_latency != null)
+            return false;
 
         return true;
     }
@@ -94,6 +132,10 @@ public class AcceptingConnectorDTO extends ConnectorTypeDTO {
         result = 31 * result + (protocol != null ? protocol.hashCode() : 0);
         result = 31 * result + (receive_buffer_size != null ? receive_buffer_size.hashCode() : 0);
         result = 31 * result + (send_buffer_size != null ? send_buffer_size.hashCode() : 0);
+        result = 31 * result + (accept_rate != null ? accept_rate.hashCode() : 0);
+        result = 31 * result + (accept_burst != null ? accept_burst.hashCode() : 0);
+        result = 31 * result + (handshake_limit != null ? handshake_limit.hashCode() : 0);
+        result = 31 * result + (max_write_latency != null ? max_write_latency.hashCode() : 0);
         result = 31 * result + (protocols != null ? protocols.hashCode() : 0);
         return result;
     }
@@ -48,6 +48,27 @@ public class AuthenticationDTO {
     @XmlAttribute
     public String domain;
 
+    /**
+     * If set, successful logins are cached for this many seconds so that
+     * clients which reconnect with the same credentials don't go through
+     * a full JAAS login again.  Not set by default.
+     */
+    @XmlAttribute(name="cache_ttl")
+    public Integer cache_ttl;
+
+    /**
+     * If set, failed logins are cached for this many seconds so that
+     * retries with the same bad credentials fail fast.  Not set by default.
+     */
+    @XmlAttribute(name="failure_cache_ttl")
+    public Integer failure_cache_ttl;
+
+    /**
+     * The maximum number of cached login results.  Defaults to 1000.
+     */
+    @XmlAttribute(name="cache_size")
+    public Integer cache_size;
+
     /**
      * The class names for the types of principles that
      * the acl lists check against.
@@ -62,6 +62,22 @@ public class ConnectionStatusDTO extends ServiceStatusDTO {
 	@XmlAttribute(name="write_counter")
 	public long write_counter;
 
+    /**
+     * The estimated nanoseconds of CPU time spent processing the connection's
+     * transport events.  Only tracked when the apollo.connection.accounting
+     * system property is set to true.
+     */
+    @XmlAttribute(name="cpu_time")
+	public long cpu_time;
+
+    /**
+     * The estimated number of bytes allocated while processing the connection's
+     * transport events.  Only tracked when the apollo.connection.accounting
+     * system property is set to true.
+     */
+    @XmlAttribute(name="allocated_bytes")
+	public long allocated_bytes;
+
     /**
      * The number of messages that have been sent to the connection.
      */
@@ -110,6 +126,12 @@ public class ConnectionStatusDTO extends ServiceStatusDTO {
 	@XmlAttribute(name="protocol_session_id")
 	public String protocol_session_id;
 
+    /**
+     * How long it took to detect the protocol the client is using in milliseconds.
+     */
+    @XmlAttribute(name="protocol_detect_time")
+	public long protocol_detect_time;
+
     /**
      * The connected user
      */
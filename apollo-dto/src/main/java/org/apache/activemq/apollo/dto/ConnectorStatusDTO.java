@@ -56,6 +56,32 @@ public class ConnectorStatusDTO extends ServiceStatusDTO {
     @XmlAttribute
     public long connected;
 
+    /**
+     * The number of connections which are still doing their protocol handshake.
+     */
+    @XmlAttribute
+    public long handshaking;
+
+    /**
+     * The number of connections which were closed right after being accepted
+     * because the connector was over it's accept rate or handshake limit.
+     */
+    @XmlAttribute(name="shed_counter")
+    public long shed_counter;
+
+    /**
+     * The number of times the connector stopped accepting connections because
+     * of the connection limit, accept rate or handshake limit.
+     */
+    @XmlAttribute(name="throttled_counter")
+    public long throttled_counter;
+
+    /**
+     * Is the connector currently accepting new connections?
+     */
+    @XmlAttribute
+    public boolean accepting;
+
     /**
      * The connections that have been created via the connector.
      */
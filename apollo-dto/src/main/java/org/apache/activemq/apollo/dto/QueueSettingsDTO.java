@@ -95,6 +95,20 @@ public class QueueSettingsDTO {
     @XmlAttribute(name="full_policy")
     public String full_policy;
 
+    /**
+     * Controls how the `tail_buffer` space is shared between the producers
+     * which are blocked waiting to enqueue onto the queue.
+     *
+     * You can set it to one of the following options:
+     *  `stalls`: Producers get a share proportional to how often they got blocked.
+     *  `producer`: Every blocked producer gets an equal share.
+     *  `connection`: Every connection with blocked producers gets an equal share.
+     *
+     * Defaults to 'stalls' if not specified.
+     */
+    @XmlAttribute(name="producer_fairness")
+    public String producer_fairness;
+
     /**
      *  The message delivery rate (in bytes/sec) at which
      *  the queue considers the consumers fast and
@@ -163,6 +177,7 @@ public class QueueSettingsDTO {
         if (fast_delivery_rate != null ? !fast_delivery_rate.equals(that.fast_delivery_rate) : that.fast_delivery_rate != null)
             return false;
         if (full_policy != null ? !full_policy.equals(that.full_policy) : that.full_policy != null) return false;
+        if (producer_fairness != null ? !producer_fairness.equals(that.producer_fairness) : that.producer_fairness != null) return false;
         if (max_enqueue_rate != null ? !max_enqueue_rate.equals(that.max_enqueue_rate) : that.max_enqueue_rate != null)
             return false;
         if (nak_limit != null ? !nak_limit.equals(that.nak_limit) : that.nak_limit != null) return false;
@@ -185,6 +200,7 @@ public class QueueSettingsDTO {
         result = 31 * result + (swap_range_size != null ? swap_range_size.hashCode() : 0);
         result = 31 * result + (quota != null ? quota.hashCode() : 0);
         result = 31 * result + (full_policy != null ? full_policy.hashCode() : 0);
+        result = 31 * result + (producer_fairness != null ? producer_fairness.hashCode() : 0);
         result = 31 * result + (fast_delivery_rate != null ? fast_delivery_rate.hashCode() : 0);
         result = 31 * result + (catchup_enqueue_rate != null ? catchup_enqueue_rate.hashCode() : 0);
         result = 31 * result + (max_enqueue_rate != null ? max_enqueue_rate.hashCode() : 0);
@@ -59,6 +59,23 @@ public class TopicDTO {
     @XmlElement(name="subscription")
     public QueueSettingsDTO subscription;
 
+    /**
+     * Once the topic has more than this number of consumers, the
+     * fan-out to additional consumers is spread across multiple
+     * dispatch queues.  If unset or set to zero, all the consumers
+     * are dispatched to from the producer's dispatch queue.
+     */
+    @XmlAttribute(name="fanout_threshold")
+    public Integer fanout_threshold;
+
+    /**
+     * The maximum number of dispatch queues used to fan-out to
+     * consumers once the `fanout_threshold` is reached.  Defaults
+     * to the number of processors.
+     */
+    @XmlAttribute(name="fanout_shards")
+    public Integer fanout_shards;
+
     /**
      * To hold any other non-matching XML elements
      */
@@ -79,6 +96,10 @@ public class TopicDTO {
         if (subscription != null ? !subscription.equals(topicDTO.subscription) : topicDTO.subscription != null) return false;
         if (slow_consumer_policy != null ? !slow_consumer_policy.equals(topicDTO.slow_consumer_policy) : topicDTO.slow_consumer_policy != null)
             return false;
+        if (fanout_threshold != null ? !fanout_threshold.equals(topicDTO.fanout_threshold) : topicDTO.fanout_threshold != null)
+            return false;
+        if (fanout_shards != null ? !fanout_shards.equals(topicDTO.fanout_shards) : topicDTO.fanout_shards != null)
+            return false;
 
         return true;
     }
@@ -89,6 +110,8 @@ public class TopicDTO {
         result = 31 * result + (auto_delete_after != null ? auto_delete_after.hashCode() : 0);
         result = 31 * result + (slow_consumer_policy != null ? slow_consumer_policy.hashCode() : 0);
         result = 31 * result + (subscription != null ? subscription.hashCode() : 0);
+        result = 31 * result + (fanout_threshold != null ? fanout_threshold.hashCode() : 0);
+        result = 31 * result + (fanout_shards != null ? fanout_shards.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
     }
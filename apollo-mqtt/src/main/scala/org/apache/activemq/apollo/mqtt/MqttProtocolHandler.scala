@@ -35,10 +35,9 @@ import org.fusesource.mqtt.client.QoS._
 import org.fusesource.mqtt.client.Topic
 import org.fusesource.mqtt.codec.CONNACK.Code._
 import org.fusesource.mqtt.client.QoS
-import org.fusesource.hawtdispatch.transport.HeartBeatMonitor
 import org.apache.activemq.apollo.util.path.{Path, PathParser, PathMap}
 import org.fusesource.mqtt.codec._
-import scala.collection.mutable.{HashSet, HashMap}
+import scala.collection.mutable.HashMap
 import org.apache.activemq.apollo.mqtt.MqttSessionManager._
 import org.apache.activemq.apollo.broker.store.{Store, StoreUOW}
 import scala.Array._
@@ -60,6 +59,9 @@ object MqttProtocolHandler extends Log {
 
   val WAITING_ON_CLIENT_REQUEST = ()=> "client request"
 
+  // All the connections share one timer wheel for their keep alive checks.
+  val keep_alive_wheel = new TimerWheel("mqtt keep alive", 250)
+
   object SessionDeliverySizer extends Sizer[(Session[Delivery], Delivery)] {
     def size(value: (Session[Delivery], Delivery)) = Delivery.size(value._2)
   }
@@ -118,7 +120,7 @@ class MqttProtocolHandler extends ProtocolHandler {
   override def on_transport_connected() = {
     import collection.JavaConversions._
 
-    codec = connection.transport.getProtocolCodec.asInstanceOf[MQTTProtocolCodec]
+    codec = connection.protocol_codec(classOf[MQTTProtocolCodec])
     val connector_config = connection.connector.config.asInstanceOf[AcceptingConnectorDTO]
     config = connector_config.protocols.find( _.isInstanceOf[MqttDTO]).map(_.asInstanceOf[MqttDTO]).getOrElse(new MqttDTO)
     import OptionSupport._
@@ -175,7 +177,10 @@ class MqttProtocolHandler extends ProtocolHandler {
         }
       })
 
-      heart_beat_monitor.stop
+      if( keep_alive_timeout!=null ) {
+        keep_alive_timeout.cancel
+        keep_alive_timeout = null
+      }
       if( !connection.stopped ) {
         connection.stop(NOOP)
       }
@@ -202,16 +207,43 @@ class MqttProtocolHandler extends ProtocolHandler {
   /////////////////////////////////////////////////////////////////////
 
   var status = WAITING_ON_CLIENT_REQUEST
+  var read_suspended = false
+
   def suspend_read(reason: => String) = {
     status = reason _
+    read_suspended = true
     connection.transport.suspendRead
-    heart_beat_monitor.suspendRead
   }
 
   def resume_read() = {
     status = WAITING_ON_CLIENT_REQUEST
+    read_suspended = false
     connection.transport.resumeRead
-    heart_beat_monitor.resumeRead
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Bits related to checking the client's keep alive
+  //
+  /////////////////////////////////////////////////////////////////////
+  var keep_alive_interval = 0L
+  var keep_alive_timeout:TimerWheel#Timeout = null
+  var keep_alive_read_counter = 0L
+
+  def schedule_keep_alive:Unit = {
+    keep_alive_read_counter = codec.getReadCounter
+    keep_alive_timeout = keep_alive_wheel.schedule(keep_alive_interval) {
+      queue {
+        keep_alive_timeout = null
+        if( !dead ) {
+          if( !read_suspended && codec.getReadCounter == keep_alive_read_counter ) {
+            async_die("Missed keep alive set to "+connect_message.keepAlive+" seconds")
+          } else {
+            schedule_keep_alive
+          }
+        }
+      }
+    }
   }
 
   /////////////////////////////////////////////////////////////////////
@@ -319,7 +351,6 @@ class MqttProtocolHandler extends ProtocolHandler {
   /////////////////////////////////////////////////////////////////////
   
   var connect_message:CONNECT = _
-  var heart_beat_monitor = new HeartBeatMonitor
   var host:VirtualHost = _
 
   def connect_handler(command:AnyRef):Unit = command match {
@@ -356,14 +387,9 @@ class MqttProtocolHandler extends ProtocolHandler {
 
     val keep_alive = connect_message.keepAlive
     if( keep_alive > 0 ) {
-      heart_beat_monitor.setReadInterval((keep_alive*1.5).toLong*1000)
-      heart_beat_monitor.setOnDead(^{
-        async_die("Missed keep alive set to "+keep_alive+" seconds")
-      });
+      keep_alive_interval = (keep_alive*1.5).toLong*1000
+      schedule_keep_alive
     }
-    heart_beat_monitor.suspendRead()
-    heart_beat_monitor.setTransport(connection.transport)
-    heart_beat_monitor.start
 
     suspend_read("virtual host lookup")
     broker.dispatch_queue {
@@ -406,6 +432,7 @@ class MqttProtocolHandler extends ProtocolHandler {
   }
   
   def on_host_connected(host:VirtualHost):Unit = {
+    connection.handshake_completed
     MqttSessionManager.attach(host, connect_message.clientId(), this)
   }
 
@@ -444,18 +471,38 @@ object MqttSessionManager {
 
   val queue = createQueue("session manager")
 
+  val SESSION_PREFIX = new AsciiBuffer("mqtt:")
+  val RECEIVED_PREFIX = new AsciiBuffer("mqtt-rx:")
+  val RECEIVED_MARKER = new Buffer(Array[Byte](1))
+
+  /**
+   * The key of the map entry which records that an EXACTLY_ONCE message
+   * id was received: the client id followed by the 2 byte message id.
+   */
+  def received_key(client_id:UTF8Buffer, id:Int):Buffer = {
+    val rc = new Buffer(RECEIVED_PREFIX.length + client_id.length + 2)
+    System.arraycopy(RECEIVED_PREFIX.data, RECEIVED_PREFIX.offset, rc.data, 0, RECEIVED_PREFIX.length)
+    System.arraycopy(client_id.data, client_id.offset, rc.data, RECEIVED_PREFIX.length, client_id.length)
+    rc.data(rc.length-2) = (id >>> 8).toByte
+    rc.data(rc.length-1) = id.toByte
+    rc
+  }
+
   class SessionState {
     var durable_sub:SubscriptionAddress = _
     val subscriptions = HashMap[UTF8Buffer, (Topic, BindAddress)]()
-    val received_message_ids: HashSet[Short] = new HashSet[Short]
+    // EXACTLY_ONCE message ids waiting for a PUBREL, indexed by the message id.
+    val received_message_ids = new ShortBitSet
 
     trait StorageStrategy {
       def update(cb: =>Unit)
+      def received(id:Short, added:Boolean)(cb: =>Unit)
       def destroy(cb: =>Unit)
       def create(store:Store, client_id:UTF8Buffer)
     }
     case class NoopStrategy() extends StorageStrategy {
       def update(cb: =>Unit) = { cb }
+      def received(id:Short, added:Boolean)(cb: =>Unit) = { cb }
       def destroy(cb: =>Unit) { cb }
       def create(store:Store, client_id:UTF8Buffer) = {
         if(store!=null)
@@ -465,11 +512,20 @@ object MqttSessionManager {
 
     case class StoreStrategy(store:Store, client_id:UTF8Buffer) extends StorageStrategy {
       val session_key = new UTF8Buffer("mqtt:"+client_id)
+
+      // The received message ids are not part of the session record, each
+      // one is stored in it's own map entry so that only the id that
+      // changed gets written.
+      def received(id:Short, added:Boolean)(cb: =>Unit) = {
+        val uow = store.create_uow()
+        uow.put(received_key(client_id, id & 0xFFFF), if( added ) RECEIVED_MARKER else null)
+        complete(uow, cb)
+      }
+
       def update(cb: =>Unit) = {
         val uow = store.create_uow()
         val session_pb = new SessionPB.Bean
         session_pb.setClientId(client_id)
-        received_message_ids.foreach(session_pb.addReceivedMessageIds(_))
         subscriptions.values.foreach { case (topic, address) =>
           val topic_pb = new TopicPB.Bean
           topic_pb.setName(topic.name())
@@ -478,7 +534,10 @@ object MqttSessionManager {
           session_pb.addSubscriptions(topic_pb)
         }
         uow.put(session_key, session_pb.freeze().toUnframedBuffer)
+        complete(uow, cb)
+      }
 
+      def complete(uow:StoreUOW, cb: =>Unit) = {
         val current = getCurrentQueue
         uow.on_complete {
           current {
@@ -491,6 +550,9 @@ object MqttSessionManager {
       def destroy(cb: =>Unit) {
         val uow = store.create_uow()
         uow.put(session_key, null)
+        received_message_ids.toArray.foreach { id =>
+          uow.put(received_key(client_id, id), null)
+        }
         val current = getCurrentQueue
         uow.on_complete {
           current {
@@ -520,7 +582,8 @@ object MqttSessionManager {
         if(host.store!=null) {
           // We load all the persisted session's from the host's store when we are first accessed.
           queue.suspend()
-          host.store.get_prefixed_map_entries(new AsciiBuffer("mqtt:")) { entries =>
+          host.store.get_prefixed_map_entries(SESSION_PREFIX) { entries =>
+           host.store.get_prefixed_map_entries(RECEIVED_PREFIX) { received_entries =>
             queue.resume()
             queue {
               for( (_, value) <- entries ) {
@@ -529,7 +592,13 @@ object MqttSessionManager {
                 val session_state = new SessionState()
                 session_state.strategy.create(host.store, session_pb.getClientId)
                 if( session_pb.hasReceivedMessageIds ) {
-                  session_state.received_message_ids ++= session_pb.getReceivedMessageIdsList.map(_.toShort)
+                  // Written by an older version which kept the ids in the session
+                  // record, move them to their own entries.
+                  session_pb.getReceivedMessageIdsList.foreach { id =>
+                    session_state.received_message_ids.add(id.intValue)
+                    session_state.strategy.received(id.shortValue, true){}
+                  }
+                  session_state.strategy.update{}
                 }
                 if( session_pb.hasSubscriptions ) {
                   session_pb.getSubscriptionsList.foreach { sub =>
@@ -540,9 +609,15 @@ object MqttSessionManager {
                 }
                 session_states.put(session_pb.getClientId, session_state)
               }
+              for( (key, _) <- received_entries ) {
+                val client_id = new UTF8Buffer(key.slice(RECEIVED_PREFIX.length, key.length-2))
+                val id = ((key.get(key.length-2) & 0xFF) << 8) | (key.get(key.length-1) & 0xFF)
+                session_states.get(client_id).foreach(_.received_message_ids.add(id))
+              }
               loaded = true
               func
             }
+           }
           }
         } else {
           loaded = true
@@ -650,6 +725,7 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
     security_context = h.security_context
     h.command_handler = on_transport_command _
     destination_parser = h.destination_parser
+    max_in_flight = Option(h.config.max_in_flight).map(_.intValue.min(0x7FFF)).getOrElse(0x7FFF)
     mqtt_consumer.consumer_sink.downstream = Some(h.sink_manager.open)
 
     def ack_connect = {
@@ -695,7 +771,7 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
   def detach:Unit = {
     queue.assertExecuting()
 
-    if(!producerRoutes.isEmpty) {
+    if( producerRoutes!=null && !producerRoutes.isEmpty ) {
       import collection.JavaConversions._
       val routes = producerRoutes.values.toSeq.toArray
       host.dispatch_queue {
@@ -703,8 +779,8 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
           host.router.disconnect(Array(route.address), route)
         }
       }
-      producerRoutes.clear
     }
+    producerRoutes = null
 
     if( clean_session ) {
       if(!mqtt_consumer.addresses.isEmpty) {
@@ -726,15 +802,17 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
       }
     }
 
-    in_flight_publishes.values.foreach { request =>
-      if( request.ack!=null ) {
-        if(request.delivered) {
-          request.ack(Delivered)
-        } else {
-          request.ack(Undelivered)
+    in_flight_publishes.foreach(new LongHashMap.Visitor[Request] {
+      def visit(id:Long, request:Request) = {
+        if( request.ack!=null ) {
+          if(request.delivered) {
+            request.ack(Delivered)
+          } else {
+            request.ack(Undelivered)
+          }
         }
       }
-    }
+    })
     in_flight_publishes.clear()
     
     handler.get.sink_manager.close(mqtt_consumer.consumer_sink.downstream.get, (request)=>{})
@@ -761,7 +839,11 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
   //
   /////////////////////////////////////////////////////////////////////
 
-  var in_flight_publishes = HashMap[Short, Request]()
+  // keyed by the unsigned 16 bit message id.
+  val in_flight_publishes = new LongHashMap[Request](2)
+  // once that many QoS 1 and 2 messages are waiting for an ack, we stop
+  // dispatching to the client.
+  var max_in_flight = 0x7FFF
 
   def send(message: MessageSupport.Message): Unit = {
     queue.assertExecuting()
@@ -770,17 +852,17 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
 
   def publish_completed(id: Short): Unit = {
     queue.assertExecuting()
-    in_flight_publishes.remove(id) match {
-      case Some(request) =>
-        if ( request.ack != null ) {
-          request.ack(Consumed)
-        }
-      case None =>
+    in_flight_publishes.remove(id & 0xFFFF) match {
+      case null =>
         // It's possible that on a reconnect, we get an ACK
         // in for message that was not dispatched yet. store
         // a place holder so we ack it upon the dispatch 
         // attempt.
-        in_flight_publishes.put(id, Request(id, null, null))
+        in_flight_publishes.put(id & 0xFFFF, Request(id, null, null))
+      case request =>
+        if ( request.ack != null ) {
+          request.ack(Consumed)
+        }
     }
   }
 
@@ -800,10 +882,11 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
         // This follows a Publish with QoS EXACTLY_ONCE
         case PUBREL.TYPE =>
           var ack = received(new PUBREL().decode(command))
-          // TODO: perhaps persist the processed list.. otherwise
-          // we can't filter out dups after a broker restart.
-          session_state.received_message_ids.remove(ack.messageId)
-          session_state.strategy.update {
+          if( session_state.received_message_ids.remove(ack.messageId) ) {
+            session_state.strategy.received(ack.messageId, false) {
+              send(new PUBCOMP().messageId(ack.messageId))
+            }
+          } else {
             send(new PUBCOMP().messageId(ack.messageId))
           }
 
@@ -854,10 +937,18 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
   // Bits that deal with processing PUBLISH messages
   //
   /////////////////////////////////////////////////////////////////////
-  var producerRoutes = new LRUCache[UTF8Buffer, MqttProducerRoute](10) {
-    override def onCacheEviction(eldest: Entry[UTF8Buffer, MqttProducerRoute]) = {
-      host.router.disconnect(Array(eldest.getValue.address), eldest.getValue)
+  // Only created once the client publishes, most IoT clients just subscribe.
+  var producerRoutes:LRUCache[UTF8Buffer, MqttProducerRoute] = null
+
+  def producer_routes = {
+    if( producerRoutes==null ) {
+      producerRoutes = new LRUCache[UTF8Buffer, MqttProducerRoute](10) {
+        override def onCacheEviction(eldest: Entry[UTF8Buffer, MqttProducerRoute]) = {
+          host.router.disconnect(Array(eldest.getValue.address), eldest.getValue)
+        }
+      }
     }
+    producerRoutes
   }
   case class MqttProducerRoute(address:SimpleAddress, handler:MqttProtocolHandler) extends DeliveryProducerRoute(host.router) {
     override def send_buffer_size = handler.codec.getReadBufferSize
@@ -880,7 +971,7 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
     handler.get.messages_received += 1
 
     queue.assertExecuting()
-    producerRoutes.get(publish.topicName()) match {
+    producer_routes.get(publish.topicName()) match {
       case null =>
         // create the producer route...
 
@@ -895,7 +986,7 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
             // We don't care if we are not allowed to send..
             if (!route.handler.connection.stopped) {
               route.handler.resume_read
-              producerRoutes.put(publish.topicName(), route)
+              producer_routes.put(publish.topicName(), route)
               send_via_route(route, publish)
             }
           }
@@ -918,9 +1009,8 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
 
     def exactly_once_ack(r:DeliveryResult, uow:StoreUOW):Unit = queue {
       queue.assertExecuting()
-      // TODO: perhaps persist the processed list..
       session_state.received_message_ids.add(publish.messageId)
-      session_state.strategy.update {
+      session_state.strategy.received(publish.messageId, true) {
         val response = new PUBREC
         response.messageId(publish.messageId)
         send(response)
@@ -1148,7 +1238,7 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
       // Look up which QoS we need to send this message with..
       var topic = delivery.sender.head.simple
       import collection.JavaConversions._
-      addresses.get(topic).orElse(wildcards.get(topic.path).headOption) match {
+      addresses.get(topic).orElse(wildcards.first_match(topic.path)) match {
           
         case None =>
           // draining messages after an un-subscribe
@@ -1186,12 +1276,13 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
 
             publish.messageId(id)
             val request = Request(id, publish, (result)=>{acked(delivery, result)})
-            in_flight_publishes.put(id, request) match {
-              case Some(r) =>
+            in_flight_publishes.put(id & 0xFFFF, request) match {
+              case null =>
+              case r =>
                 // A reconnecting client could have acked before
                 // we get dispatched by the durable sub.
                 if( r.message == null ) {
-                  in_flight_publishes.remove(id)
+                  in_flight_publishes.remove(id & 0xFFFF)
                   acked(delivery, Consumed)
                 } else {
                   // Looks we sent out a msg with that id.  This could only
@@ -1199,7 +1290,6 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
                   // one has not been acked.
                   handler.foreach(_.async_die("Client not acking regularly.", null))
                 }
-              case None =>
             }
             
             Some(request)
@@ -1212,7 +1302,9 @@ case class MqttSession(host_state:HostState, client_id:UTF8Buffer, session_state
           }
       }
       
-    }, SessionDeliverySizer)
+    }, SessionDeliverySizer) {
+      override def full = super.full || in_flight_publishes.size >= max_in_flight
+    }
 
     def acked(delivery:Delivery, result:DeliveryResult) = {
       queue.assertExecuting()
@@ -62,6 +62,14 @@ public class MqttDTO extends ProtocolDTO {
     @XmlAttribute(name="die_delay")
     public Long die_delay;
 
+    /**
+     * The maximum number of QoS 1 and 2 messages which can be sent
+     * to a client before it has to acknowledge some of them.
+     * Defaults to 32767.
+     */
+    @XmlAttribute(name="max_in_flight")
+    public Integer max_in_flight;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -88,6 +96,8 @@ public class MqttDTO extends ProtocolDTO {
             return false;
         if (part_pattern != null ? !part_pattern.equals(mqttDTO.part_pattern) : mqttDTO.part_pattern != null)
             return false;
+        if (max_in_flight != null ? !max_in_flight.equals(mqttDTO.max_in_flight) : mqttDTO.max_in_flight != null)
+            return false;
 
         return true;
     }
@@ -104,6 +114,7 @@ public class MqttDTO extends ProtocolDTO {
         result = 31 * result + (any_descendant_wildcard != null ? any_descendant_wildcard.hashCode() : 0);
         result = 31 * result + (regex_wildcard_start != null ? regex_wildcard_start.hashCode() : 0);
         result = 31 * result + (regex_wildcard_end != null ? regex_wildcard_end.hashCode() : 0);
+        result = 31 * result + (max_in_flight != null ? max_in_flight.hashCode() : 0);
         return result;
     }
 }
@@ -26,6 +26,16 @@ class MqttConnectionTest extends MqttTestSupport {
     client.open("localhost", port)
   }
 
+  test("MQTT CONNECT to a connector with a max_write_latency") {
+    client.open("localhost", connector_port("coalescing").get)
+    client.connection.isConnected should be(true)
+  }
+
+  test("MQTT CONNECT to an any protocol connector with a max_write_latency") {
+    client.open("localhost", connector_port("coalescing_any").get)
+    client.connection.isConnected should be(true)
+  }
+
   test("MQTT Broker times out idle connection") {
 
     val queue = createQueue("test")
@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.mqtt.test
+
+import org.fusesource.mqtt.client.QoS
+
+/**
+ * Measures how much heap each idle subscribed MQTT connection uses.
+ * The measurement includes the client side of the connections since they
+ * run in the same JVM.  Set the `mqtt.idle.connections` system property
+ * to open more connections than the default for a more accurate number.
+ */
+class MqttIdleConnectionMemoryTest extends MqttTestSupport {
+
+  val MAX_BYTES_PER_CONNECTION = 128*1024L
+
+  def used_memory = {
+    val runtime = Runtime.getRuntime
+    for( i <- 0 until 5 ) {
+      System.gc()
+      Thread.sleep(50)
+    }
+    runtime.totalMemory - runtime.freeMemory
+  }
+
+  test("Memory used by idle connections") {
+    val count = Integer.getInteger("mqtt.idle.connections", 200).intValue
+
+    val before = used_memory
+    for( i <- 0 until count ) {
+      val c = create_client
+      c.setClientId("idle-"+i)
+      c.setKeepAlive(60)
+      connect(c)
+      subscribe("idle/"+i, QoS.AT_LEAST_ONCE, c)
+    }
+    val after = used_memory
+
+    val per_connection = (after - before) / count
+    info("Each idle connection uses about %,d bytes of heap", per_connection)
+    per_connection should be < (MAX_BYTES_PER_CONNECTION)
+  }
+
+}
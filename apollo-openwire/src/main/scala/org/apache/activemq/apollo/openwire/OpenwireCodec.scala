@@ -39,6 +39,43 @@ object OpenwireCodec extends Sizer[Command] {
   final val DB_VERSION = OpenWireFormat.DEFAULT_VERSION
   final val DB_TIGHT_ENCODING = false
 
+  /**
+   * The formats and scratch buffer used to convert messages to and
+   * from message records.  They are kept per thread so they don't have
+   * to get created for every message.
+   */
+  class DBFormats {
+    private var formats = new Array[OpenWireFormat](2*(DB_VERSION+1))
+    var scratch = new DataByteArrayOutputStream(1024*4)
+
+    // writes straight into the scratch buffer, we fill in the size prefix.
+    val encoder = new OpenWireFormat(DB_VERSION)
+    encoder.setCacheEnabled(false)
+    encoder.setTightEncodingEnabled(DB_TIGHT_ENCODING)
+    encoder.setSizePrefixDisabled(true)
+
+    def apply(tight:Boolean, version:Int) = {
+      val i = (version << 1) | (if(tight) 1 else 0)
+      if( i >= formats.length ) {
+        val t = new Array[OpenWireFormat](i+1)
+        System.arraycopy(formats, 0, t, 0, formats.length)
+        formats = t
+      }
+      var rc = formats(i)
+      if( rc == null ) {
+        rc = new OpenWireFormat(version)
+        rc.setCacheEnabled(false)
+        rc.setTightEncodingEnabled(tight)
+        formats(i) = rc
+      }
+      rc
+    }
+  }
+
+  private val db_formats = new ThreadLocal[DBFormats]() {
+    override def initialValue = new DBFormats
+  }
+
   def encode(message: Message):MessageRecord = {
     val rc = new MessageRecord
     rc.codec = PROTOCOL
@@ -60,17 +97,26 @@ object OpenwireCodec extends Sizer[Command] {
 
       case _ =>
 
-        val db_format = new OpenWireFormat();
-        db_format.setCacheEnabled(false)
-        db_format.setTightEncodingEnabled(DB_TIGHT_ENCODING)
-        db_format.setVersion(DB_VERSION)
-
-        val size = msg.message.getEncodedSize
-        val boas = new DataByteArrayOutputStream(if(size==0) 1024 else size + 20)
+        val formats = db_formats.get
+        val boas = formats.scratch
+        boas.restart()
         boas.writeBoolean(DB_TIGHT_ENCODING)
         boas.writeVarInt(DB_VERSION)
-        db_format.marshal(msg.message, boas);
-        boas.toBuffer
+        val size_pos = boas.size
+        boas.writeInt(0)
+        formats.encoder.marshal(msg.message, boas);
+        val end = boas.size
+        boas.position(size_pos)
+        boas.writeInt(end - size_pos - 4)
+        boas.position(end)
+
+        // the scratch buffer gets reused, so copy out what we wrote.
+        val buffer = boas.toBuffer.deepCopy
+        if( boas.getData.length > 1024*64 ) {
+          // don't hang on to the memory of a big message.
+          formats.scratch = new DataByteArrayOutputStream(1024*4)
+        }
+        buffer
 
     }
     rc
@@ -83,12 +129,7 @@ object OpenwireCodec extends Sizer[Command] {
     var version: Int = bais.readVarInt()
     buffer.moveHead(bais.getPos-buffer.offset)
 
-    val db_format = new OpenWireFormat();
-    db_format.setCacheEnabled(false)
-    db_format.setTightEncodingEnabled(tight)
-    db_format.setVersion(version)
-
-    val msg = db_format.unmarshal(bais).asInstanceOf[ActiveMQMessage]
+    val msg = db_formats.get()(tight, version).unmarshal(bais).asInstanceOf[ActiveMQMessage]
     msg.setEncodedSize(buffer.length)
     msg.setCachedEncoding(CachedEncoding(tight, version, buffer))
     new OpenwireMessage(msg)
@@ -447,11 +447,13 @@ class OpenwireProtocolHandler extends ProtocolHandler {
               async_die("Not authorized to connect to virtual host '%s'. Principals=%s".format(this.host.id, security_context.principal_dump))
             } else {
               resume_read
+              connection.handshake_completed
               ack(info);
             }
           }
         }
       } else {
+        connection.handshake_completed
         ack(info);
       }
     } else {
@@ -808,6 +810,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
     override def toString = "openwire consumer id:"+info.getConsumerId+", remote address: "+security_context.remote_address
 
     var selector_expression:BooleanExpression = _
+    override def jms_selector_expression = selector_expression
     var addresses:Array[_ <: BindAddress] = _
 
     val consumer_sink = sink_manager.open()
@@ -872,7 +875,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
         case null=> null
         case x=>
           try {
-            SelectorParser.parse(x.toString)
+            SelectorParser.compile(x.toString)
           } catch {
             case e:FilterException =>
               fail("Invalid selector expression: "+e.getMessage, info)
@@ -55,9 +55,10 @@ public final class OpenWireFormat {
     // The following fields are used for value caching
     private short nextMarshallCacheIndex;
     private short nextMarshallCacheEvictionIndex;
-    private Map<DataStructure, Short> marshallCacheMap = new HashMap<DataStructure, Short>();
-    private DataStructure marshallCache[] = new DataStructure[MARSHAL_CACHE_SIZE];
-    private DataStructure unmarshallCache[] = new DataStructure[MARSHAL_CACHE_SIZE];
+    // only allocated once caching gets enabled since they are big.
+    private Map<DataStructure, Short> marshallCacheMap;
+    private DataStructure marshallCache[];
+    private DataStructure unmarshallCache[];
     private DataByteArrayOutputStream bytesOut = new DataByteArrayOutputStream();
     private DataByteArrayInputStream bytesIn = new DataByteArrayInputStream();
 
@@ -77,11 +78,10 @@ public final class OpenWireFormat {
     }
 
     public OpenWireFormat copy() {
-        OpenWireFormat answer = new OpenWireFormat();
-        answer.version = version;
+        OpenWireFormat answer = new OpenWireFormat(version);
         answer.stackTraceEnabled = stackTraceEnabled;
         answer.tcpNoDelayEnabled = tcpNoDelayEnabled;
-        answer.cacheEnabled = cacheEnabled;
+        answer.setCacheEnabled(cacheEnabled);
         answer.tightEncodingEnabled = tightEncodingEnabled;
         answer.sizePrefixDisabled = sizePrefixDisabled;
         return answer;
@@ -583,6 +583,13 @@ public final class OpenWireFormat {
 
     public void setCacheEnabled(boolean cacheEnabled) {
         this.cacheEnabled = cacheEnabled;
+        if (cacheEnabled && marshallCache == null) {
+            marshallCache = new DataStructure[MARSHAL_CACHE_SIZE];
+            unmarshallCache = new DataStructure[MARSHAL_CACHE_SIZE];
+            nextMarshallCacheIndex = 0;
+            nextMarshallCacheEvictionIndex = 0;
+            marshallCacheMap = new HashMap<DataStructure, Short>();
+        }
     }
 
     public boolean isTightEncodingEnabled() {
@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.activemq.apollo.openwire.support.LazyPropertyMap;
 import org.apache.activemq.apollo.openwire.support.MarshallingSupport;
 import org.apache.activemq.apollo.openwire.support.OpenwireException;
 import org.apache.activemq.apollo.openwire.support.advisory.AdvisorySupport;
@@ -77,6 +78,8 @@ public abstract class Message extends BaseCommand implements MarshallAware {
 
     protected int size;
     protected Map<String, Object> properties;
+    // decodes just the properties which get looked up (by selectors).
+    protected LazyPropertyMap lazyProperties;
     protected boolean readOnlyProperties;
     protected boolean readOnlyBody;
     protected transient boolean recievedByDFBridge;
@@ -164,7 +167,10 @@ public abstract class Message extends BaseCommand implements MarshallAware {
             if (marshalledProperties == null) {
                 return null;
             }
-            properties = unmarsallProperties(marshalledProperties);
+            if (lazyProperties == null) {
+                lazyProperties = new LazyPropertyMap(marshalledProperties.data, marshalledProperties.offset, marshalledProperties.length);
+            }
+            return lazyProperties.get(name);
         }
         return properties.get(name);
     }
@@ -176,12 +182,14 @@ public abstract class Message extends BaseCommand implements MarshallAware {
                 return Collections.EMPTY_MAP;
             }
             properties = unmarsallProperties(marshalledProperties);
+            lazyProperties = null;
         }
         return Collections.unmodifiableMap(properties);
     }
 
     public void clearProperties() {
         marshalledProperties = null;
+        lazyProperties = null;
         properties = null;
     }
 
@@ -197,6 +205,7 @@ public abstract class Message extends BaseCommand implements MarshallAware {
             } else {
                 properties = unmarsallProperties(marshalledProperties);
                 marshalledProperties = null;
+                lazyProperties = null;
             }
         }
     }
@@ -420,6 +429,7 @@ public abstract class Message extends BaseCommand implements MarshallAware {
 
     public void setMarshalledProperties(Buffer marshalledProperties) {
         this.marshalledProperties = marshalledProperties;
+        this.lazyProperties = null;
     }
 
     /**
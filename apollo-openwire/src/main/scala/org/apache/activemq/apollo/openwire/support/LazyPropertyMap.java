@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.openwire.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A read only view of a marshalled primitive map (like the properties
+ * of a message) which only decodes the values which get looked up.
+ * The first lookup scans the map to index where each value is, later
+ * lookups go straight to the value.  Decoded values are kept so a value
+ * is only decoded once.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class LazyPropertyMap {
+
+    private static final Object NOT_DECODED = new Object();
+
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    // written last so that readers on other threads see a complete index.
+    private volatile String[] names;
+    private int[] positions;
+    private Object[] values;
+
+    public LazyPropertyMap(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public Object get(String name) throws IOException {
+        String[] names = this.names;
+        if (names == null) {
+            names = index();
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                Object value = values[i];
+                if (value == NOT_DECODED) {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, positions[i], offset + length - positions[i]));
+                    value = values[i] = MarshallingSupport.unmarshalPrimitive(in);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    public int size() throws IOException {
+        String[] names = this.names;
+        if (names == null) {
+            names = index();
+        }
+        return names.length;
+    }
+
+    private String[] index() throws IOException {
+        int pos = offset;
+        int size = readInt(pos);
+        pos += 4;
+        if (size < 0) {
+            size = 0;
+        }
+        String[] names = new String[size];
+        int[] positions = new int[size];
+        for (int i = 0; i < size; i++) {
+            int len = readUnsignedShort(pos);
+            pos += 2;
+            names[i] = readName(pos, len);
+            pos += len;
+            positions[i] = pos;
+            pos = skipPrimitive(pos);
+        }
+        values = new Object[size];
+        Arrays.fill(values, NOT_DECODED);
+        this.positions = positions;
+        this.names = names;
+        return names;
+    }
+
+    private String readName(int pos, int len) throws IOException {
+        check(pos, len);
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            byte b = data[pos + i];
+            if (b <= 0) {
+                // not plain ascii, let the JDK deal with the modified UTF-8.
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, pos - 2, len + 2));
+                return in.readUTF();
+            }
+            chars[i] = (char) b;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the position just past the primitive value at pos.
+     */
+    private int skipPrimitive(int pos) throws IOException {
+        check(pos, 1);
+        byte type = data[pos++];
+        switch (type) {
+        case MarshallingSupport.NULL:
+            return pos;
+        case MarshallingSupport.BOOLEAN_TYPE:
+        case MarshallingSupport.BYTE_TYPE:
+            return pos + 1;
+        case MarshallingSupport.CHAR_TYPE:
+        case MarshallingSupport.SHORT_TYPE:
+            return pos + 2;
+        case MarshallingSupport.INTEGER_TYPE:
+        case MarshallingSupport.FLOAT_TYPE:
+            return pos + 4;
+        case MarshallingSupport.LONG_TYPE:
+        case MarshallingSupport.DOUBLE_TYPE:
+            return pos + 8;
+        case MarshallingSupport.STRING_TYPE:
+            return pos + 2 + readUnsignedShort(pos);
+        case MarshallingSupport.BYTE_ARRAY_TYPE:
+        case MarshallingSupport.BIG_STRING_TYPE: {
+            int len = readInt(pos);
+            return pos + 4 + Math.max(len, 0);
+        }
+        case MarshallingSupport.MAP_TYPE: {
+            int size = readInt(pos);
+            pos += 4;
+            for (int i = 0; i < size; i++) {
+                pos += 2 + readUnsignedShort(pos);
+                pos = skipPrimitive(pos);
+            }
+            return pos;
+        }
+        case MarshallingSupport.LIST_TYPE: {
+            int size = readInt(pos);
+            pos += 4;
+            for (int i = 0; i < size; i++) {
+                pos = skipPrimitive(pos);
+            }
+            return pos;
+        }
+        default:
+            throw new IOException("Unknown primitive type: " + type);
+        }
+    }
+
+    private int readInt(int pos) throws IOException {
+        check(pos, 4);
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    private int readUnsignedShort(int pos) throws IOException {
+        check(pos, 2);
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private void check(int pos, int len) throws IOException {
+        if (pos + len > offset + length) {
+            throw new IOException("Marshalled properties are truncated");
+        }
+    }
+
+}
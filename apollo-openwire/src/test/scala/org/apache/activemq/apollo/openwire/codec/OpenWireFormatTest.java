@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.openwire.codec;
+
+import junit.framework.TestCase;
+import org.apache.activemq.apollo.openwire.command.ProducerId;
+import org.apache.activemq.apollo.openwire.command.ProducerInfo;
+import org.fusesource.hawtbuf.Buffer;
+
+/**
+ */
+public class OpenWireFormatTest extends TestCase {
+
+    public void testCopyWithCacheEnabled() throws Exception {
+        OpenWireFormat format = new OpenWireFormat();
+        format.setCacheEnabled(true);
+
+        OpenWireFormat copy = format.copy();
+        assertEquals(format, copy);
+        assertTrue(copy.isCacheEnabled());
+
+        ProducerId id = new ProducerId("ID:test-1:1:1:1");
+        Buffer buffer = copy.marshal(new ProducerInfo(id));
+        ProducerInfo info = (ProducerInfo) format.copy().unmarshal(buffer);
+        assertEquals(id, info.getProducerId());
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.openwire.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ */
+public class LazyPropertyMapTest extends TestCase {
+
+    public void testLookupsMatchTheFullyDecodedMap() throws Exception {
+        Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("inner", "value");
+        List<Object> list = new ArrayList<Object>();
+        list.add(Integer.valueOf(1));
+        list.add("two");
+
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            big.append('x');
+        }
+
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("null", null);
+        map.put("boolean", Boolean.TRUE);
+        map.put("byte", Byte.valueOf((byte) 3));
+        map.put("char", Character.valueOf('c'));
+        map.put("short", Short.valueOf((short) 5));
+        map.put("int", Integer.valueOf(6));
+        map.put("long", Long.valueOf(7));
+        map.put("float", new Float(8.5));
+        map.put("double", new Double(9.5));
+        map.put("bytes", new byte[] {1, 2, 3});
+        map.put("string", "hello");
+        map.put("big string", big.toString());
+        map.put("map", nested);
+        map.put("list", list);
+        map.put("unïcode", "last");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(baos);
+        os.write(new byte[] {42, 42});
+        MarshallingSupport.marshalPrimitiveMap(map, os);
+        os.close();
+        byte[] data = baos.toByteArray();
+
+        LazyPropertyMap lazy = new LazyPropertyMap(data, 2, data.length - 2);
+        assertEquals("last", lazy.get("unïcode"));
+        assertEquals(map.size(), lazy.size());
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = lazy.get(entry.getKey());
+            if (entry.getValue() instanceof byte[]) {
+                assertTrue(Arrays.equals((byte[]) entry.getValue(), (byte[]) value));
+            } else {
+                assertEquals(entry.getKey(), entry.getValue(), value);
+            }
+        }
+        assertNull(lazy.get("missing"));
+    }
+
+}
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An equality predicate of the form <code>property = 'value'</code>,
+ * <code>property IN ('value1', 'value2')</code>, or an OR of those on
+ * the same property, which must be satisfied for a selector to match a
+ * message.  Subscription indexes use it to avoid evaluating selectors
+ * which cannot match a message.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class EqualityPredicate {
+
+    private final String property;
+    private final Set<String> values;
+    private final boolean convertStringExpressions;
+
+    public EqualityPredicate(String property, Set<String> values, boolean convertStringExpressions) {
+        this.property = property;
+        this.values = values;
+        this.convertStringExpressions = convertStringExpressions;
+    }
+
+    /**
+     * @return the name of the property the predicate is on.
+     */
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * @return the string values the property must be equal to.
+     */
+    public Set<String> getValues() {
+        return values;
+    }
+
+    /**
+     * @return true if a property value which is not a String could also
+     *         satisfy the predicate once converted.
+     */
+    public boolean isConvertStringExpressions() {
+        return convertStringExpressions;
+    }
+
+    /**
+     * Can a message who's property has the given value satisfy the predicate?
+     */
+    public boolean accepts(Object value) {
+        if (value == null) {
+            return false;
+        }
+        if (value.getClass() == String.class) {
+            return values.contains(value);
+        }
+        return convertStringExpressions;
+    }
+
+    public String toString() {
+        return property + " IN " + values;
+    }
+
+    /**
+     * Finds an equality predicate which is implied by the expression.
+     *
+     * @return the predicate or null if the expression does not imply one.
+     */
+    public static EqualityPredicate extract(BooleanExpression expression) {
+        if (expression instanceof ExpressionCompiler.CompiledExpression) {
+            return extract(((ExpressionCompiler.CompiledExpression)expression).getSource());
+        } else if (expression instanceof LogicExpression) {
+            LogicExpression logic = (LogicExpression)expression;
+            String symbol = logic.getExpressionSymbol();
+            if ("AND".equals(symbol)) {
+                // Both sides must hold, so either side's predicate will do.
+                EqualityPredicate rc = extract((BooleanExpression)logic.getLeft());
+                if (rc == null) {
+                    rc = extract((BooleanExpression)logic.getRight());
+                }
+                return rc;
+            } else if ("OR".equals(symbol)) {
+                // Only if both sides constrain the same property.
+                EqualityPredicate left = extract((BooleanExpression)logic.getLeft());
+                if (left == null) {
+                    return null;
+                }
+                EqualityPredicate right = extract((BooleanExpression)logic.getRight());
+                if (right == null || !left.property.equals(right.property)) {
+                    return null;
+                }
+                HashSet<String> values = new HashSet<String>(left.values);
+                values.addAll(right.values);
+                return new EqualityPredicate(left.property, values, left.convertStringExpressions || right.convertStringExpressions);
+            }
+        } else if (expression instanceof ComparisonExpression) {
+            ComparisonExpression comparison = (ComparisonExpression)expression;
+            if ("=".equals(comparison.getExpressionSymbol())) {
+                Expression left = comparison.getLeft();
+                Expression right = comparison.getRight();
+                if (left instanceof ConstantExpression) {
+                    Expression t = left;
+                    left = right;
+                    right = t;
+                }
+                if (left instanceof PropertyExpression && right instanceof ConstantExpression) {
+                    Object value = ((ConstantExpression)right).getValue();
+                    if (value instanceof String) {
+                        return new EqualityPredicate(((PropertyExpression)left).getName(), Collections.singleton((String)value), comparison.convertStringExpressions);
+                    }
+                }
+            }
+        } else if (expression instanceof UnaryExpression.InExpression) {
+            UnaryExpression.InExpression in = (UnaryExpression.InExpression)expression;
+            if (!in.not && in.inList != null && in.getRight() instanceof PropertyExpression) {
+                HashSet<String> values = new HashSet<String>();
+                for (Object value : in.inList) {
+                    if (!(value instanceof String)) {
+                        return null;
+                    }
+                    values.add((String)value);
+                }
+                // IN only ever matches String values.
+                return new EqualityPredicate(((PropertyExpression)in.getRight()).getName(), values, false);
+            }
+        }
+        return null;
+    }
+
+}
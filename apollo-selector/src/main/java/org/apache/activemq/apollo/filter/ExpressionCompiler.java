@@ -0,0 +1,783 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles a parsed selector expression tree into a tree of specialized
+ * nodes which evaluate to the same results as the interpreted tree but:
+ * <ul>
+ * <li>fold sub expressions which do not reference the message into constants</li>
+ * <li>look up properties which are referenced several times only once per evaluation</li>
+ * <li>compare numeric values as primitives instead of boxing up conversions</li>
+ * <li>evaluate LIKE patterns which only use '%' wildcards without a regex</li>
+ * <li>when only a match is needed, evaluate the cheapest AND/OR operands first</li>
+ * </ul>
+ *
+ * Like the JMS spec, the compiler assumes message properties are boxed
+ * primitives or strings.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ExpressionCompiler {
+
+    private static final Object UNRESOLVED = new Object();
+
+    private static final int EQ = 0;
+    private static final int GT = 1;
+    private static final int GE = 2;
+    private static final int LT = 3;
+    private static final int LE = 4;
+
+    /**
+     * @return a compiled form of the expression.
+     */
+    public static BooleanExpression compile(BooleanExpression expression) {
+        if (expression instanceof CompiledExpression) {
+            return expression;
+        }
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        compiler.countProperties(expression);
+        Node root = compiler.compileNode(expression);
+        return new CompiledExpression(expression, root, compiler.slots);
+    }
+
+    /**
+     * The result of compiling a BooleanExpression.
+     */
+    public static class CompiledExpression implements BooleanExpression {
+
+        private final BooleanExpression source;
+        private final Node root;
+        private final int slots;
+
+        CompiledExpression(BooleanExpression source, Node root, int slots) {
+            this.source = source;
+            this.root = root;
+            this.slots = slots;
+        }
+
+        /**
+         * @return the interpreted expression this was compiled from.
+         */
+        public BooleanExpression getSource() {
+            return source;
+        }
+
+        private Object[] createCache() {
+            if (slots == 0) {
+                return null;
+            }
+            Object[] cache = new Object[slots];
+            Arrays.fill(cache, UNRESOLVED);
+            return cache;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            return root.evaluate(message, createCache());
+        }
+
+        public boolean matches(Filterable message) throws FilterException {
+            return root.test(message, createCache());
+        }
+
+        public String toString() {
+            return source.toString();
+        }
+
+        public int hashCode() {
+            return source.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            if (o == null || !this.getClass().equals(o.getClass())) {
+                return false;
+            }
+            return source.equals(((CompiledExpression)o).source);
+        }
+    }
+
+    /**
+     * A compiled expression node.
+     */
+    abstract static class Node {
+
+        /**
+         * @return the same value the source expression would have evaluated to.
+         */
+        abstract Object evaluate(Filterable message, Object[] cache) throws FilterException;
+
+        /**
+         * @return true if the node would have evaluated to Boolean.TRUE.
+         */
+        boolean test(Filterable message, Object[] cache) throws FilterException {
+            return evaluate(message, cache) == Boolean.TRUE;
+        }
+
+        /**
+         * @return true if the node does not depend on the message.
+         */
+        boolean isConstant() {
+            return false;
+        }
+
+        /**
+         * @return true if evaluating the node could throw an exception.
+         */
+        boolean mayThrow() {
+            return false;
+        }
+
+        /**
+         * @return a rough relative cost of evaluating the node.
+         */
+        abstract int cost();
+    }
+
+    private final HashMap<String, Integer> propertyCounts = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> propertySlots = new HashMap<String, Integer>();
+    private int slots;
+
+    private void countProperties(Expression expression) {
+        if (expression instanceof PropertyExpression) {
+            String name = ((PropertyExpression)expression).getName();
+            Integer count = propertyCounts.get(name);
+            propertyCounts.put(name, count == null ? 1 : count + 1);
+        } else if (expression instanceof BinaryExpression) {
+            countProperties(((BinaryExpression)expression).getLeft());
+            countProperties(((BinaryExpression)expression).getRight());
+        } else if (expression instanceof UnaryExpression) {
+            countProperties(((UnaryExpression)expression).getRight());
+        }
+    }
+
+    private Node compileNode(Expression expression) {
+        Node node = doCompileNode(expression);
+        if (node.isConstant() && !(node instanceof Constant)) {
+            try {
+                return new Constant(node.evaluate(null, null));
+            } catch (Throwable e) {
+                // Leave it to fail at evaluation time just like the interpreter would.
+            }
+        }
+        return node;
+    }
+
+    private Node doCompileNode(Expression expression) {
+        if (expression instanceof ConstantExpression) {
+            return new Constant(((ConstantExpression)expression).getValue());
+        }
+        if (expression instanceof PropertyExpression) {
+            String name = ((PropertyExpression)expression).getName();
+            if (propertyCounts.get(name) > 1) {
+                Integer slot = propertySlots.get(name);
+                if (slot == null) {
+                    slot = slots++;
+                    propertySlots.put(name, slot);
+                }
+                return new CachedProperty(name, slot);
+            }
+            return new Property(name);
+        }
+        if (expression instanceof LogicExpression) {
+            LogicExpression logic = (LogicExpression)expression;
+            String symbol = logic.getExpressionSymbol();
+            if ("AND".equals(symbol) || "OR".equals(symbol)) {
+                return new Logic("AND".equals(symbol), compileNode(logic.getLeft()), compileNode(logic.getRight()));
+            }
+        }
+        if (expression instanceof ComparisonExpression) {
+            ComparisonExpression comparison = (ComparisonExpression)expression;
+            int op = operator(comparison.getExpressionSymbol());
+            if (op >= 0) {
+                return new Comparison(comparison, op, compileNode(comparison.getLeft()), compileNode(comparison.getRight()));
+            }
+        }
+        if (expression instanceof ArithmeticExpression) {
+            ArithmeticExpression arithmetic = (ArithmeticExpression)expression;
+            return new Arithmetic(arithmetic, compileNode(arithmetic.getLeft()), compileNode(arithmetic.getRight()));
+        }
+        if (expression instanceof ComparisonExpression.LikeExpression) {
+            ComparisonExpression.LikeExpression like = (ComparisonExpression.LikeExpression)expression;
+            return new Like(like, compileNode(like.getRight()));
+        }
+        if (expression instanceof UnaryExpression.InExpression) {
+            UnaryExpression.InExpression in = (UnaryExpression.InExpression)expression;
+            return new In(in, compileNode(in.getRight()));
+        }
+        if (expression instanceof UnaryExpression && !(expression instanceof XPathExpression) && !(expression instanceof XQueryExpression)) {
+            UnaryExpression unary = (UnaryExpression)expression;
+            String symbol = unary.getExpressionSymbol();
+            if ("NOT".equals(symbol) && unary instanceof BooleanExpression) {
+                return new Not(compileNode(unary.getRight()));
+            } else if ("".equals(symbol) && unary instanceof BooleanExpression) {
+                return new BooleanCast(compileNode(unary.getRight()));
+            } else if ("-".equals(symbol)) {
+                return new Negate(compileNode(unary.getRight()));
+            }
+        }
+        return new Interpreted(expression);
+    }
+
+    private static int operator(String symbol) {
+        if ("=".equals(symbol)) {
+            return EQ;
+        } else if (">".equals(symbol)) {
+            return GT;
+        } else if (">=".equals(symbol)) {
+            return GE;
+        } else if ("<".equals(symbol)) {
+            return LT;
+        } else if ("<=".equals(symbol)) {
+            return LE;
+        }
+        return -1;
+    }
+
+    static final class Constant extends Node {
+        final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) {
+            return value;
+        }
+
+        boolean isConstant() {
+            return true;
+        }
+
+        int cost() {
+            return 0;
+        }
+    }
+
+    static final class Property extends Node {
+        final String name;
+
+        Property(String name) {
+            this.name = name;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) {
+            return message.getProperty(name);
+        }
+
+        int cost() {
+            return 1;
+        }
+    }
+
+    static final class CachedProperty extends Node {
+        final String name;
+        final int slot;
+
+        CachedProperty(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) {
+            Object value = cache[slot];
+            if (value == UNRESOLVED) {
+                value = message.getProperty(name);
+                cache[slot] = value;
+            }
+            return value;
+        }
+
+        int cost() {
+            return 1;
+        }
+    }
+
+    static final class Logic extends Node {
+        final boolean and;
+        final Node left;
+        final Node right;
+        // The flattened operands of nested ANDs (or ORs), cheapest first.
+        final Node[] operands;
+
+        Logic(boolean and, Node left, Node right) {
+            this.and = and;
+            this.left = left;
+            this.right = right;
+
+            ArrayList<Node> list = new ArrayList<Node>();
+            flatten(left, list);
+            flatten(right, list);
+            boolean reorder = true;
+            for (Node node : list) {
+                if (node.mayThrow()) {
+                    reorder = false;
+                }
+            }
+            if (reorder) {
+                Collections.sort(list, new Comparator<Node>() {
+                    public int compare(Node a, Node b) {
+                        return a.cost() - b.cost();
+                    }
+                });
+            }
+            operands = list.toArray(new Node[list.size()]);
+        }
+
+        private void flatten(Node node, List<Node> list) {
+            if (node instanceof Logic && ((Logic)node).and == and) {
+                list.addAll(Arrays.asList(((Logic)node).operands));
+            } else {
+                list.add(node);
+            }
+        }
+
+        Object evaluate(Filterable message, Object[] cache) throws FilterException {
+            // Keeps the interpreter's null semantics, so the original order is used.
+            Boolean lv = (Boolean)left.evaluate(message, cache);
+            if (and) {
+                if (lv == null) {
+                    return null;
+                }
+                if (!lv.booleanValue()) {
+                    return Boolean.FALSE;
+                }
+            } else {
+                if (lv != null && lv.booleanValue()) {
+                    return Boolean.TRUE;
+                }
+            }
+            return (Boolean)right.evaluate(message, cache);
+        }
+
+        boolean test(Filterable message, Object[] cache) throws FilterException {
+            // An AND is only TRUE when all operands are TRUE, and an OR is TRUE
+            // when any operand is TRUE, so the operand order does not matter here.
+            if (and) {
+                for (Node operand : operands) {
+                    if (!operand.test(message, cache)) {
+                        return false;
+                    }
+                }
+                return true;
+            } else {
+                for (Node operand : operands) {
+                    if (operand.test(message, cache)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        boolean isConstant() {
+            return left.isConstant() && right.isConstant();
+        }
+
+        boolean mayThrow() {
+            return left.mayThrow() || right.mayThrow();
+        }
+
+        int cost() {
+            return left.cost() + right.cost();
+        }
+    }
+
+    static final class Comparison extends Node {
+        final ComparisonExpression source;
+        final int op;
+        final Node left;
+        final Node right;
+
+        Comparison(ComparisonExpression source, int op, Node left, Node right) {
+            this.source = source;
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) throws FilterException {
+            Object lv = left.evaluate(message, cache);
+            if (op == EQ) {
+                Object rv = right.evaluate(message, cache);
+                if (lv == null ^ rv == null) {
+                    return Boolean.FALSE;
+                }
+                if (lv == rv || lv.equals(rv)) {
+                    return Boolean.TRUE;
+                }
+                if (lv instanceof Comparable && rv instanceof Comparable) {
+                    return compare((Comparable)lv, (Comparable)rv);
+                }
+                return Boolean.FALSE;
+            }
+            if (lv == null) {
+                return null;
+            }
+            Comparable lc = (Comparable)lv;
+            Object rv = right.evaluate(message, cache);
+            if (rv == null) {
+                return null;
+            }
+            return compare(lc, (Comparable)rv);
+        }
+
+        private Boolean compare(Comparable lv, Comparable rv) {
+            // Only the widening conversions which ComparisonExpression.compare
+            // applies in both directions are done as primitives.
+            if (isIntegral(lv) && isIntegral(rv)) {
+                long l = ((Number)lv).longValue();
+                long r = ((Number)rv).longValue();
+                return result(l < r ? -1 : (l == r ? 0 : 1));
+            }
+            if ((lv instanceof Double || rv instanceof Double) && isIntegralOrDouble(lv) && isIntegralOrDouble(rv)) {
+                return result(Double.compare(((Number)lv).doubleValue(), ((Number)rv).doubleValue()));
+            }
+            if (lv instanceof String && rv instanceof String) {
+                return result(((String)lv).compareTo((String)rv));
+            }
+            return source.compare(lv, rv);
+        }
+
+        private Boolean result(int cmp) {
+            boolean rc;
+            switch (op) {
+            case EQ:
+                rc = cmp == 0;
+                break;
+            case GT:
+                rc = cmp > 0;
+                break;
+            case GE:
+                rc = cmp >= 0;
+                break;
+            case LT:
+                rc = cmp < 0;
+                break;
+            default:
+                rc = cmp <= 0;
+            }
+            return rc ? Boolean.TRUE : Boolean.FALSE;
+        }
+
+        private static boolean isIntegral(Object value) {
+            Class<?> c = value.getClass();
+            return c == Integer.class || c == Long.class;
+        }
+
+        private static boolean isIntegralOrDouble(Object value) {
+            return value.getClass() == Double.class || isIntegral(value);
+        }
+
+        boolean isConstant() {
+            return left.isConstant() && right.isConstant();
+        }
+
+        boolean mayThrow() {
+            // Like the interpreter, the ordering comparisons fail on values
+            // which are not Comparable.
+            return op != EQ || left.mayThrow() || right.mayThrow();
+        }
+
+        int cost() {
+            return 2 + left.cost() + right.cost();
+        }
+    }
+
+    static final class Arithmetic extends Node {
+        final ArithmeticExpression source;
+        final Node left;
+        final Node right;
+
+        Arithmetic(ArithmeticExpression source, Node left, Node right) {
+            this.source = source;
+            this.left = left;
+            this.right = right;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) throws FilterException {
+            Object lvalue = left.evaluate(message, cache);
+            if (lvalue == null) {
+                return null;
+            }
+            Object rvalue = right.evaluate(message, cache);
+            if (rvalue == null) {
+                return null;
+            }
+            return source.evaluate(lvalue, rvalue);
+        }
+
+        boolean isConstant() {
+            return left.isConstant() && right.isConstant();
+        }
+
+        boolean mayThrow() {
+            return true;
+        }
+
+        int cost() {
+            return 3 + left.cost() + right.cost();
+        }
+    }
+
+    static final class Like extends Node {
+        private static final int REGEX = 0;
+        private static final int EXACT = 1;
+        private static final int PREFIX = 2;
+        private static final int SUFFIX = 3;
+        private static final int CONTAINS = 4;
+        private static final int ANY = 5;
+
+        final ComparisonExpression.LikeExpression source;
+        final Node right;
+        final int kind;
+        final String text;
+
+        Like(ComparisonExpression.LikeExpression source, Node right) {
+            this.source = source;
+            this.right = right;
+
+            String like = source.like;
+            int kind = REGEX;
+            String text = null;
+            if (source.escape == -1 && like.indexOf('_') < 0) {
+                int first = like.indexOf('%');
+                if (first < 0) {
+                    kind = EXACT;
+                    text = like;
+                } else {
+                    int start = 0;
+                    while (start < like.length() && like.charAt(start) == '%') {
+                        start++;
+                    }
+                    int end = like.length();
+                    while (end > start && like.charAt(end - 1) == '%') {
+                        end--;
+                    }
+                    text = like.substring(start, end);
+                    if (text.indexOf('%') < 0) {
+                        if (text.length() == 0) {
+                            kind = ANY;
+                        } else if (start == 0) {
+                            kind = PREFIX;
+                        } else if (end == like.length()) {
+                            kind = SUFFIX;
+                        } else {
+                            kind = CONTAINS;
+                        }
+                    }
+                }
+            }
+            this.kind = kind;
+            this.text = text;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) throws FilterException {
+            Object rv = right.evaluate(message, cache);
+            if (rv == null) {
+                return null;
+            }
+            if (!(rv instanceof String)) {
+                return Boolean.FALSE;
+            }
+            String value = (String)rv;
+            boolean rc;
+            switch (kind) {
+            case EXACT:
+                rc = value.equals(text);
+                break;
+            case PREFIX:
+                rc = value.startsWith(text);
+                break;
+            case SUFFIX:
+                rc = value.endsWith(text);
+                break;
+            case CONTAINS:
+                rc = value.contains(text);
+                break;
+            case ANY:
+                rc = true;
+                break;
+            default:
+                rc = source.likePattern.matcher(value).matches();
+            }
+            return rc ? Boolean.TRUE : Boolean.FALSE;
+        }
+
+        boolean isConstant() {
+            return right.isConstant();
+        }
+
+        int cost() {
+            return (kind == REGEX ? 10 : 3) + right.cost();
+        }
+    }
+
+    static final class In extends Node {
+        final Set<Object> values;
+        final boolean not;
+        final Node right;
+
+        In(UnaryExpression.InExpression source, Node right) {
+            this.values = source.inList == null ? Collections.<Object>emptySet() : new HashSet<Object>(source.inList);
+            this.not = source.not;
+            this.right = right;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) throws FilterException {
+            Object rvalue = right.evaluate(message, cache);
+            if (rvalue == null) {
+                return null;
+            }
+            if (rvalue.getClass() != String.class) {
+                return null;
+            }
+            return values.contains(rvalue) ^ not ? Boolean.TRUE : Boolean.FALSE;
+        }
+
+        boolean isConstant() {
+            return right.isConstant();
+        }
+
+        int cost() {
+            return 3 + right.cost();
+        }
+    }
+
+    static final class Not extends Node {
+        final Node right;
+
+        Not(Node right) {
+            this.right = right;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) throws FilterException {
+            Boolean lvalue = (Boolean)right.evaluate(message, cache);
+            if (lvalue == null) {
+                return null;
+            }
+            return lvalue.booleanValue() ? Boolean.FALSE : Boolean.TRUE;
+        }
+
+        boolean isConstant() {
+            return right.isConstant();
+        }
+
+        boolean mayThrow() {
+            return right.mayThrow();
+        }
+
+        int cost() {
+            return 1 + right.cost();
+        }
+    }
+
+    static final class BooleanCast extends Node {
+        final Node right;
+
+        BooleanCast(Node right) {
+            this.right = right;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) throws FilterException {
+            Object rvalue = right.evaluate(message, cache);
+            if (rvalue == null) {
+                return null;
+            }
+            if (rvalue.getClass() != Boolean.class) {
+                return Boolean.FALSE;
+            }
+            return ((Boolean)rvalue).booleanValue() ? Boolean.TRUE : Boolean.FALSE;
+        }
+
+        boolean isConstant() {
+            return right.isConstant();
+        }
+
+        boolean mayThrow() {
+            return right.mayThrow();
+        }
+
+        int cost() {
+            return 1 + right.cost();
+        }
+    }
+
+    static final class Negate extends Node {
+        final Node right;
+
+        Negate(Node right) {
+            this.right = right;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) throws FilterException {
+            Object rvalue = right.evaluate(message, cache);
+            if (rvalue == null) {
+                return null;
+            }
+            if (rvalue instanceof Number) {
+                return UnaryExpression.negate((Number)rvalue);
+            }
+            return null;
+        }
+
+        boolean isConstant() {
+            return right.isConstant();
+        }
+
+        boolean mayThrow() {
+            return true;
+        }
+
+        int cost() {
+            return 1 + right.cost();
+        }
+    }
+
+    /**
+     * Falls back to the interpreter for expressions the compiler does not
+     * know about, like XPath selectors.
+     */
+    static final class Interpreted extends Node {
+        final Expression expression;
+
+        Interpreted(Expression expression) {
+            this.expression = expression;
+        }
+
+        Object evaluate(Filterable message, Object[] cache) throws FilterException {
+            return expression.evaluate(message);
+        }
+
+        boolean mayThrow() {
+            return true;
+        }
+
+        int cost() {
+            return 100;
+        }
+    }
+
+}
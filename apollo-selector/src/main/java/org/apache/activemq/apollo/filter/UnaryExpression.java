@@ -67,56 +67,66 @@ public abstract class UnaryExpression implements Expression {
         } else {
             t = new HashSet<Object>(elements);
         }
-        final Collection<Object> inList = t;
+        return new InExpression(right, t, not);
+    }
 
-        return new BooleanUnaryExpression(right) {
-            public Object evaluate(Filterable message) throws FilterException {
+    static class InExpression extends BooleanUnaryExpression {
 
-                Object rvalue = right.evaluate(message);
-                if (rvalue == null) {
-                    return null;
-                }
-                if (rvalue.getClass() != String.class) {
-                    return null;
-                }
+        final Collection<Object> inList;
+        final boolean not;
 
-                if ((inList != null && inList.contains(rvalue)) ^ not) {
-                    return Boolean.TRUE;
-                } else {
-                    return Boolean.FALSE;
-                }
+        public InExpression(PropertyExpression right, Collection<Object> inList, boolean not) {
+            super(right);
+            this.inList = inList;
+            this.not = not;
+        }
 
-            }
+        public Object evaluate(Filterable message) throws FilterException {
 
-            public String toString() {
-                StringBuffer answer = new StringBuffer();
-                answer.append(right);
-                answer.append(" ");
-                answer.append(getExpressionSymbol());
-                answer.append(" ( ");
-
-                int count = 0;
-                for (Iterator<Object> i = inList.iterator(); i.hasNext();) {
-                    Object o = (Object)i.next();
-                    if (count != 0) {
-                        answer.append(", ");
-                    }
-                    answer.append(o);
-                    count++;
-                }
+            Object rvalue = right.evaluate(message);
+            if (rvalue == null) {
+                return null;
+            }
+            if (rvalue.getClass() != String.class) {
+                return null;
+            }
 
-                answer.append(" )");
-                return answer.toString();
+            if ((inList != null && inList.contains(rvalue)) ^ not) {
+                return Boolean.TRUE;
+            } else {
+                return Boolean.FALSE;
             }
 
-            public String getExpressionSymbol() {
-                if (not) {
-                    return "NOT IN";
-                } else {
-                    return "IN";
+        }
+
+        public String toString() {
+            StringBuffer answer = new StringBuffer();
+            answer.append(right);
+            answer.append(" ");
+            answer.append(getExpressionSymbol());
+            answer.append(" ( ");
+
+            int count = 0;
+            for (Iterator<Object> i = inList.iterator(); i.hasNext();) {
+                Object o = (Object)i.next();
+                if (count != 0) {
+                    answer.append(", ");
                 }
+                answer.append(o);
+                count++;
             }
-        };
+
+            answer.append(" )");
+            return answer.toString();
+        }
+
+        public String getExpressionSymbol() {
+            if (not) {
+                return "NOT IN";
+            } else {
+                return "IN";
+            }
+        }
     }
 
     abstract static class BooleanUnaryExpression extends UnaryExpression implements BooleanExpression {
@@ -177,7 +187,7 @@ public abstract class UnaryExpression implements Expression {
         };
     }
 
-    private static Number negate(Number left) {
+    static Number negate(Number left) {
         Class clazz = left.getClass();
         if (clazz == Integer.class) {
             return new Integer(-left.intValue());
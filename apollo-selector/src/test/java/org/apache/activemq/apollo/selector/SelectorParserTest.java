@@ -20,6 +20,7 @@ import junit.framework.TestCase;
 
 import org.apache.activemq.apollo.filter.BooleanExpression;
 import org.apache.activemq.apollo.filter.ComparisonExpression;
+import org.apache.activemq.apollo.filter.EqualityPredicate;
 import org.apache.activemq.apollo.filter.Expression;
 import org.apache.activemq.apollo.filter.LogicExpression;
 import org.apache.activemq.apollo.filter.PropertyExpression;
@@ -61,6 +62,20 @@ public class SelectorParserTest extends TestCase {
         }
     }
 
+    public void testExtractEqualityPredicate() throws Exception {
+        EqualityPredicate predicate = EqualityPredicate.extract(parse("x > 1 and (color = 'red' or color IN ('green', 'blue'))"));
+        assertNotNull(predicate);
+        assertEquals("color", predicate.getProperty());
+        assertEquals(3, predicate.getValues().size());
+        assertTrue(predicate.accepts("red"));
+        assertFalse(predicate.accepts("white"));
+        assertFalse(predicate.accepts(null));
+
+        assertNull(EqualityPredicate.extract(parse("color = 'red' or size = 'big'")));
+        assertNull(EqualityPredicate.extract(parse("color <> 'red'")));
+        assertNull(EqualityPredicate.extract(parse("x = 1")));
+    }
+
     protected void assertPropertyExpression(String message, Expression expression, String expected) {
         assertTrue(message + ". Must be PropertyExpression", expression instanceof PropertyExpression);
         PropertyExpression propExp = (PropertyExpression)expression;
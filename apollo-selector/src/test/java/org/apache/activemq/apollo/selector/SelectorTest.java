@@ -21,6 +21,7 @@ import java.util.HashMap;
 import junit.framework.TestCase;
 
 import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.ExpressionCompiler;
 import org.apache.activemq.apollo.filter.FilterException;
 import org.apache.activemq.apollo.filter.Filterable;
 
@@ -231,6 +232,16 @@ public class SelectorTest extends TestCase {
         assertSelector(message, "unknown = 'Foo' and anotherUnknown < 200", false);
     }
 
+    public void testAndSelectorsShortCircuitBeforeFailingComparisons() throws Exception {
+        MockMessage message = createMessage();
+        message.setObjectProperty("bytesProp", new byte[]{1, 2, 3});
+
+        assertSelector(message, "falseProp AND bytesProp > 5", false);
+        assertSelector(message, "foo LIKE '%ar' AND bytesProp > 5", false);
+        assertSelector(message, "trueProp OR bytesProp > 5", true);
+        assertSelector(message, "foo LIKE '%oo' OR bytesProp > 5", true);
+    }
+
     public void testOrSelectors() throws Exception {
         MockMessage message = createMessage();
 
@@ -473,6 +484,10 @@ public class SelectorTest extends TestCase {
         assertTrue("Created a valid selector", selector != null);
         boolean value = selector.matches(message);
         assertEquals("Selector for: " + text, expected, value);
+
+        BooleanExpression compiled = ExpressionCompiler.compile(selector);
+        assertEquals("Compiled selector for: " + text, expected, compiled.matches(message));
+        assertEquals("Compiled selector value for: " + text, selector.evaluate(message), compiled.evaluate(message));
     }
 
     protected MockMessage createMessage(String subject) {
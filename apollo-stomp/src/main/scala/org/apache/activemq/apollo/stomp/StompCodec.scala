@@ -36,6 +36,10 @@ object StompCodec extends Log {
 
   var max_command_length = 20
 
+  // Frame regions at least this big get handed to the transport as is instead
+  // of being copied into the codec's write buffer.
+  var direct_write_threshold = 1024
+
   def encode(message: StompFrameMessage):MessageRecord = {
     val frame = message.frame
 
@@ -170,10 +174,28 @@ class StompCodec extends AbstractProtocolCodec {
 
   protected def encode(command: AnyRef) = command match {
     case buffer:Buffer=> buffer.writeTo(nextWriteBuffer.asInstanceOf[DataOutput])
-    case frame:StompFrame=> encode(frame, nextWriteBuffer);
+    case frame:StompFrame=> encode(frame, nextWriteBuffer, true);
+  }
+
+  def encode(frame:StompFrame, os:DataOutput):Unit = encode(frame, os, false)
+
+  /**
+   * Large regions of the original frame are written with writeDirect when
+   * direct is set, so that the action and any updated headers go out as a small
+   * prefix followed by the original frame bytes in one gathering write.
+   *
+   * writeDirect swaps in a new nextWriteBuffer, which is why os is taken by
+   * name: anything written after it has to land in the current buffer.
+   */
+  private def write(buffer:Buffer, os: =>DataOutput, direct:Boolean):Unit = {
+    if( direct && buffer.length >= StompCodec.direct_write_threshold ) {
+      writeDirect(buffer.toByteBuffer)
+    } else {
+      buffer.writeTo(os)
+    }
   }
 
-  def encode(frame:StompFrame, os:DataOutput) = {
+  private def encode(frame:StompFrame, os: =>DataOutput, direct:Boolean):Unit = {
     frame.action.writeTo(os)
     os.write(NEWLINE)
 
@@ -194,7 +216,7 @@ class StompCodec extends AbstractProtocolCodec {
       val buffer1 = frame.headers.head._1;
       val buffer2 = frame.content.asInstanceOf[BufferContent].content;
       val length = (buffer2.offset-buffer1.offset)+buffer2.length
-      os.write( buffer1.data, offset, length)
+      write(new Buffer(buffer1.data, offset, length), os, direct)
       END_OF_FRAME_BUFFER.writeTo(os)
 
     } else {
@@ -211,7 +233,7 @@ class StompCodec extends AbstractProtocolCodec {
 //          assert(next_write_direct==null)
 //          next_write_direct = x.zero_copy_buffer
         case x:BufferContent=>
-          x.content.writeTo(os)
+          write(x.content, os, direct)
           END_OF_FRAME_BUFFER.writeTo(os)
         case _=>
           END_OF_FRAME_BUFFER.writeTo(os)
@@ -291,6 +313,7 @@ class StompCodec extends AbstractProtocolCodec {
           }
         } else {
           val h = headers.toList
+          val index = StompHeaderIndex(h)
           if (contentLength != null) {
             var length = try {
               contentLength.toString.toInt
@@ -301,9 +324,9 @@ class StompCodec extends AbstractProtocolCodec {
             if (max_data_length != -1 && length > max_data_length) {
               throw new IOException("The maximum data length was exceeded")
             }
-            nextDecodeAction = read_binary_body(command, h, length, contiguous)
+            nextDecodeAction = read_binary_body(command, h, index, length, contiguous)
           } else {
-            nextDecodeAction = read_text_body(command, h, contiguous)
+            nextDecodeAction = read_text_body(command, h, index, contiguous)
           }
           return nextDecodeAction.apply()
         }
@@ -312,7 +335,7 @@ class StompCodec extends AbstractProtocolCodec {
     }
   }
 
-  private def read_binary_body(command: AsciiBuffer, headers:HeaderMap, contentLength: Int, contiguous:Boolean): AbstractProtocolCodec.Action = {
+  private def read_binary_body(command: AsciiBuffer, headers:HeaderMap, index:StompHeaderIndex, contentLength: Int, contiguous:Boolean): AbstractProtocolCodec.Action = {
     return new AbstractProtocolCodec.Action {
       def apply: AnyRef = {
         var content = readBytes(contentLength + 1)
@@ -323,7 +346,9 @@ class StompCodec extends AbstractProtocolCodec {
           nextDecodeAction = read_action
           content.moveTail(-1)
           val body = if( content.length() == 0) NilContent else BufferContent(content)
-          return new StompFrame(command, headers, body, contiguous)
+          val frame = new StompFrame(command, headers, body, contiguous)
+          frame.headers_index = index
+          return frame
         }
         else {
           return null
@@ -332,7 +357,7 @@ class StompCodec extends AbstractProtocolCodec {
     }
   }
 
-  private def read_text_body(command: AsciiBuffer, headers:HeaderMap, contiguous:Boolean): AbstractProtocolCodec.Action = {
+  private def read_text_body(command: AsciiBuffer, headers:HeaderMap, index:StompHeaderIndex, contiguous:Boolean): AbstractProtocolCodec.Action = {
     return new AbstractProtocolCodec.Action {
       def apply: AnyRef = {
         var content: Buffer = readUntil(0.asInstanceOf[Byte])
@@ -340,7 +365,9 @@ class StompCodec extends AbstractProtocolCodec {
           nextDecodeAction = read_action
           content.moveTail(-1)
           val body = if( content.length() == 0) NilContent else BufferContent(content)
-          return new StompFrame(command, headers, body, contiguous)
+          val frame = new StompFrame(command, headers, body, contiguous)
+          frame.headers_index = index
+          return frame
         }
         else {
           return null
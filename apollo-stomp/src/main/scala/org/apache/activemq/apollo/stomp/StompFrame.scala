@@ -60,17 +60,19 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
    */
   var persistent = false
 
-  for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-    header match {
-      case (MESSAGE_ID, value) =>
-        id = value
-      case (PRIORITY, value) =>
-        priority = java.lang.Integer.parseInt(value).toByte
-      case (EXPIRES, value) =>
-        expiration = java.lang.Long.parseLong(value)
-      case (PERSISTENT, value) =>
-        persistent = java.lang.Boolean.parseBoolean(value)
-      case _ =>
+  {
+    id = frame.header(MESSAGE_ID)
+    var value = frame.header(PRIORITY)
+    if( value!=null ) {
+      priority = java.lang.Integer.parseInt(value).toByte
+    }
+    value = frame.header(EXPIRES)
+    if( value!=null ) {
+      expiration = java.lang.Long.parseLong(value)
+    }
+    value = frame.header(PERSISTENT)
+    if( value!=null ) {
+      persistent = java.lang.Boolean.parseBoolean(value)
     }
   }
 
@@ -111,34 +113,23 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
     id.slice(id.offset, pos).toString
   }
 
-  /* avoid paying the price of creating the header index. lots of times we don't need it */
-  lazy val headerIndex: Map[AsciiBuffer, AsciiBuffer] =  {
-    var rc = Map[AsciiBuffer, AsciiBuffer]()
-    for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-      rc += (header._1 -> header._2)
-    }
-    rc
-  }
-
   def getProperty(name: String):AnyRef = {
     (name match {
       // TODO: handle more of the JMS Types that ActiveMQ 5 supports.
       case "JMSMessageID" =>
-        Some(id)
+        id
       case "JMSType" =>
-        headerIndex.get(ascii("type"))
+        frame.header(TYPE)
       case "JMSDeliveryMode" =>
-        Some(ascii(
-          if( persistent )
-            "PERSISTENT"
-          else
-            "NON_PERSISTENT"
-        ))
+        if( persistent )
+          PERSISTENT_DELIVERY_MODE
+        else
+          NON_PERSISTENT_DELIVERY_MODE
       case _=>
-        headerIndex.get(ascii(name))
+        frame.header(name)
     }) match {
-      case Some(rc) => rc.utf8.toString
-      case None => null
+      case null => null
+      case rc => rc.utf8.toString
     }
   }
 
@@ -231,6 +222,33 @@ case class ZeroCopyContent(zero_copy_buffer:DirectBuffer) extends StompContent {
  */
 case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompContent=NilContent, contiguous:Boolean=false, updated_headers:HeaderMap=Nil) {
 
+  private var _headers_index:StompHeaderIndex = null
+
+  /**
+   * An index over the original headers.  The codec builds it as the frame
+   * is decoded, otherwise it's built on first use.
+   */
+  def headers_index = {
+    if( _headers_index==null ) {
+      _headers_index = StompHeaderIndex(headers)
+    }
+    _headers_index
+  }
+
+  def headers_index_=(value:StompHeaderIndex) = {
+    _headers_index = value
+  }
+
+  /**
+   * Re-uses the header index of a frame which has the same original headers.
+   */
+  def share_headers_index(other:StompFrame):StompFrame = {
+    if( other.headers eq headers ) {
+      _headers_index = other._headers_index
+    }
+    this
+  }
+
   def size_of_updated_headers = {
     size_of(updated_headers)
   }
@@ -281,18 +299,164 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
     size_of_original_headers + 1 + content.length
   }
 
-  def header(name:AsciiBuffer) = {
-    updated_headers.filter( _._1 == name ).headOption.orElse(
-      headers.filter( _._1 == name ).headOption
-    ).map(_._2).getOrElse(null)
+  def header(name:AsciiBuffer):AsciiBuffer = {
+    // the updated headers are added by the broker and there are usually only a few.
+    var cur = updated_headers
+    while( cur ne Nil ) {
+      if( cur.head._1 == name ) {
+        return cur.head._2
+      }
+      cur = cur.tail
+    }
+    headers_index.get(name)
+  }
+
+  def header(name:String):AsciiBuffer = {
+    if( StompHeaderIndex.hash(name) < 0 ) {
+      return header(ascii(name))
+    }
+    var cur = updated_headers
+    while( cur ne Nil ) {
+      if( StompHeaderIndex.matches(cur.head._1, name) ) {
+        return cur.head._2
+      }
+      cur = cur.tail
+    }
+    headers_index.get(name)
   }
 
-  def append_headers(value:HeaderMap) = StompFrame(action, headers, content, contiguous, value ::: updated_headers)
+  def append_headers(value:HeaderMap) = StompFrame(action, headers, content, contiguous, value ::: updated_headers).share_headers_index(this)
 
   def retain = content.retain
   def release = content.release
 }
 
+object StompHeaderIndex {
+
+  val EMPTY = new StompHeaderIndex(Nil)
+
+  def apply(headers:HeaderMap) = if( headers.isEmpty ) EMPTY else new StompHeaderIndex(headers)
+
+  def hash(name:AsciiBuffer):Int = {
+    val data = name.data
+    var rc = 0
+    var i = name.offset
+    val end = name.offset + name.length
+    while( i < end ) {
+      rc = 31*rc + (data(i) & 0xFF)
+      i += 1
+    }
+    (rc ^ (rc >>> 16)) & 0x7FFFFFFF
+  }
+
+  /**
+   * @return the hash of the name or -1 if it's not ascii.
+   */
+  def hash(name:String):Int = {
+    var rc = 0
+    var i = 0
+    while( i < name.length ) {
+      val c = name.charAt(i)
+      if( c > 0x7F ) {
+        return -1
+      }
+      rc = 31*rc + c
+      i += 1
+    }
+    (rc ^ (rc >>> 16)) & 0x7FFFFFFF
+  }
+
+  def matches(name:AsciiBuffer, value:String):Boolean = {
+    if( name.length != value.length ) {
+      return false
+    }
+    val data = name.data
+    var i = 0
+    while( i < value.length ) {
+      if( (data(name.offset+i) & 0xFF) != value.charAt(i) ) {
+        return false
+      }
+      i += 1
+    }
+    true
+  }
+}
+
+/**
+ * A compact lookup table over the headers of a frame.  The header names and
+ * values are held in parallel arrays and a small open addressing table maps
+ * the hash of a name to the position of its first occurrence, which is the
+ * one that takes effect.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StompHeaderIndex(headers:HeaderMap) {
+  import StompHeaderIndex._
+
+  val size = headers.size
+  val names = new Array[AsciiBuffer](size)
+  val values = new Array[AsciiBuffer](size)
+
+  // holds header position + 1, 0 marks an empty slot.
+  private val table = {
+    var capacity = 4
+    while( capacity < size*2 ) {
+      capacity <<= 1
+    }
+    new Array[Int](capacity)
+  }
+  private val mask = table.length - 1
+
+  {
+    var i = 0
+    var cur = headers
+    while( cur ne Nil ) {
+      val name = cur.head._1
+      names(i) = name
+      values(i) = cur.head._2
+      var slot = hash(name) & mask
+      var found = false
+      while( !found && table(slot)!=0 ) {
+        found = names(table(slot)-1) == name
+        slot = (slot + 1) & mask
+      }
+      if( !found ) {
+        table(slot) = i + 1
+      }
+      i += 1
+      cur = cur.tail
+    }
+  }
+
+  def get(name:AsciiBuffer):AsciiBuffer = {
+    var slot = hash(name) & mask
+    while( table(slot)!=0 ) {
+      val pos = table(slot)-1
+      if( names(pos) == name ) {
+        return values(pos)
+      }
+      slot = (slot + 1) & mask
+    }
+    null
+  }
+
+  def get(name:String):AsciiBuffer = {
+    val h = hash(name)
+    if( h < 0 ) {
+      return get(ascii(name))
+    }
+    var slot = h & mask
+    while( table(slot)!=0 ) {
+      val pos = table(slot)-1
+      if( StompHeaderIndex.matches(names(pos), name) ) {
+        return values(pos)
+      }
+      slot = (slot + 1) & mask
+    }
+    null
+  }
+}
+
 object Stomp {
 
   val PROTOCOL = "stomp"
@@ -355,6 +519,7 @@ object Stomp {
   val ABORT = ascii("ABORT")
   val ACK = ascii("ACK")
   val NACK = ascii("NACK")
+  val BATCH = ascii("BATCH")
 
   ///////////////////////////////////////////////////////////////////
   // Frame Responses
@@ -421,6 +586,7 @@ object Stomp {
   val TEMP = ascii("temp")
   val INCLUDE_SEQ = ascii("include-seq")
   val FROM_SEQ = ascii("from-seq")
+  val BATCH_HEADER = ascii("batch")
 
   ///////////////////////////////////////////////////////////////////
   // Common Values
@@ -445,6 +611,9 @@ object Stomp {
 
   val TEXT_PLAIN = ascii("text/plain")
 
+  val PERSISTENT_DELIVERY_MODE = ascii("PERSISTENT")
+  val NON_PERSISTENT_DELIVERY_MODE = ascii("NON_PERSISTENT")
+
   val TEMP_QUEUE = ascii("/temp-queue/")
   val TEMP_TOPIC = ascii("/temp-topic/")
 
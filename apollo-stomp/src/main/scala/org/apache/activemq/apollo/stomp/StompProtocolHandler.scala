@@ -31,6 +31,7 @@ import org.apache.activemq.apollo.filter.{BooleanExpression, FilterException}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.Map.Entry
 import collection.mutable.{ListBuffer, HashMap}
 import java.io.IOException
@@ -87,6 +88,10 @@ object StompProtocolHandler extends Log {
     None
   }
 
+  def get(frame:StompFrame, name:AsciiBuffer):Option[AsciiBuffer] = {
+    Option(frame.header(name))
+  }
+
   def get(headers:HeaderMap, names:List[AsciiBuffer]):List[Option[AsciiBuffer]] = {
     names.map(x=>get(headers, x))
   }
@@ -146,6 +151,54 @@ object StompProtocolHandler extends Log {
     }
   }
 
+  private val HEX_DIGITS = "0123456789abcdef".getBytes("US-ASCII")
+
+  /**
+   * Hex encodes an ack id without going through a String.
+   */
+  def encode_ack_id(id:Long):AsciiBuffer = {
+    var digits = 1
+    while( digits < 16 && (id >>> (digits*4)) != 0 ) {
+      digits += 1
+    }
+    val data = new Array[Byte](digits)
+    var value = id
+    var i = digits-1
+    while( i >= 0 ) {
+      data(i) = HEX_DIGITS((value & 0xF).toInt)
+      value >>>= 4
+      i -= 1
+    }
+    new AsciiBuffer(data)
+  }
+
+  /**
+   * @return the decoded ack id or -1 if the value is not a valid ack id.
+   */
+  def decode_ack_id(value:Buffer):Long = {
+    if( value==null || value.length == 0 || value.length > 16 ) {
+      return -1
+    }
+    var rc = 0L
+    var i = value.offset
+    val end = value.offset + value.length
+    while( i < end ) {
+      val c = value.data(i)
+      val digit = if( c >= '0' && c <= '9' ) {
+        c - '0'
+      } else if( c >= 'a' && c <= 'f' ) {
+        c - 'a' + 10
+      } else if( c >= 'A' && c <= 'F' ) {
+        c - 'A' + 10
+      } else {
+        return -1
+      }
+      rc = (rc << 4) | digit
+      i += 1
+    }
+    rc
+  }
+
 }
 
 /**
@@ -168,29 +221,39 @@ class StompProtocolHandler extends ProtocolHandler {
 
   //////////////////////////////////////////////////////////////////
   //
-  // Since ack id's are re-useable once they are acked by the client,
-  // try to re-use them since the first ones generated will be the
-  // shortest ack-ids available.
+  // Ack ids are longs which only get hex encoded into the ack header
+  // of the outbound frame.  Since ack id's are re-useable once they are
+  // acked by the client, try to re-use them since the first ones
+  // generated will be the shortest ack-ids available.  The pool starts
+  // small and grows up to ACK_ID_POOL_LIMIT entries so that idle
+  // connections don't pay for it.
   //
   //////////////////////////////////////////////////////////////////
+  final val ACK_ID_POOL_LIMIT = 0xFFF
   var ack_id_counter = 1L
-  var ack_id_pool = new util.HashSet[AsciiBuffer]()
-  def checkout_ack_id:AsciiBuffer = {
-    if( ack_id_pool!=null && ack_id_pool.size()>0 ) {
-      val i = ack_id_pool.iterator();
-      val rc = i.next()
-      i.remove()
-      rc
+  var ack_id_pool = new Array[Long](16)
+  var ack_id_pool_size = 0
+
+  def checkout_ack_id:Long = {
+    if( ack_id_pool!=null && ack_id_pool_size > 0 ) {
+      ack_id_pool_size -= 1
+      ack_id_pool(ack_id_pool_size)
     } else {
       ack_id_counter += 1
-      ascii(java.lang.Long.toHexString(ack_id_counter))
+      ack_id_counter
     }
   }
 
-  def checkin_ack_id(id:AsciiBuffer) = {
+  def checkin_ack_id(id:Long) = {
     if( ack_id_pool!=null ) {
-      if( ack_id_pool.size() < 0xFFF ) {
-        ack_id_pool.add(id);
+      if( ack_id_pool_size == ack_id_pool.length && ack_id_pool.length < ACK_ID_POOL_LIMIT ) {
+        val grown = new Array[Long](ack_id_pool.length*2 min ACK_ID_POOL_LIMIT)
+        System.arraycopy(ack_id_pool, 0, grown, 0, ack_id_pool_size)
+        ack_id_pool = grown
+      }
+      if( ack_id_pool_size < ack_id_pool.length ) {
+        ack_id_pool(ack_id_pool_size) = id
+        ack_id_pool_size += 1
       } else {
         // if we are sending too many messages at once
         // then it might not makes sense to pool..
@@ -242,6 +305,7 @@ class StompProtocolHandler extends ProtocolHandler {
     override def start_from_tail = from_seq == -1
 
     override def jms_selector = if(selector!=null){ selector._1 } else { null }
+    override def jms_selector_expression = if(selector!=null){ selector._2 } else { null }
 
     override def user = security_context.user
 
@@ -268,11 +332,53 @@ class StompProtocolHandler extends ProtocolHandler {
     credit_window_source.resume
 
     trait AckHandler {
-      def track(session:Session[Delivery], msgid: AsciiBuffer, size:Int, ack:(DeliveryResult, StoreUOW)=>Unit):Unit
-      def credit(msgid: AsciiBuffer, credit_value: (Int, Int)):Unit
-      def perform_ack(consumed:DeliveryResult, msgid: AsciiBuffer, uow:StoreUOW=null):Unit
+      def track(session:Session[Delivery], ack_id:Long, msgid: AsciiBuffer, size:Int, ack:(DeliveryResult, StoreUOW)=>Unit):Unit
+      def credit(ack_id:Long, credit_value: (Int, Int)):Unit
+      def perform_ack(consumed:DeliveryResult, ack_id:Long, uow:StoreUOW=null):Unit
       def close:Unit
       def consumer = StompConsumer.this
+
+      // STOMP 1.0 and 1.1 clients ack using the message id.
+      val ack_ids_by_message_id = if( protocol_version eq V1_2 ) {
+        null
+      } else {
+        HashMap[AsciiBuffer, Long]()
+      }
+
+      /**
+       * @return the ack id the message was tracked with or -1 if it's not being tracked.
+       */
+      def ack_id(msgid:AsciiBuffer):Long = {
+        if( msgid==null || ack_ids_by_message_id==null ) {
+          -1
+        } else {
+          ack_ids_by_message_id.getOrElse(msgid, -1L)
+        }
+      }
+
+      def register(ack_id:Long, msgid:AsciiBuffer) = {
+        if( ack_ids_by_message_id!=null ) {
+          ack_ids_by_message_id.put(msgid, ack_id)
+        }
+        if( (protocol_version eq V1_0) ) {
+          // register on the connection since 1.0 acks may not include the subscription id
+          connection_message_id_handlers.put(msgid, this)
+        } else if( protocol_version eq V1_2 ) {
+          connection_ack_handlers.put(ack_id, this)
+        }
+      }
+
+      def unregister(tack:TrackedAck) = {
+        if( ack_ids_by_message_id!=null ) {
+          ack_ids_by_message_id.remove(tack.msgid)
+        }
+        if( protocol_version eq V1_0 ) {
+          connection_message_id_handlers.remove(tack.msgid)
+        } else if( protocol_version eq V1_2 ) {
+          connection_ack_handlers.remove(tack.id)
+        }
+        checkin_ack_id(tack.id)
+      }
     }
 
     class AutoAckHandler extends AckHandler {
@@ -280,7 +386,7 @@ class StompProtocolHandler extends ProtocolHandler {
 
       def close = { closed  = true}
 
-      def track(session:Session[Delivery], msgid: AsciiBuffer, size:Int, ack:(DeliveryResult, StoreUOW)=>Unit) = {
+      def track(session:Session[Delivery], ack_id:Long, msgid: AsciiBuffer, size:Int, ack:(DeliveryResult, StoreUOW)=>Unit) = {
         session_manager.delivered(session, size)
         if( closed ) {
           if( ack!=null ) {
@@ -296,23 +402,26 @@ class StompProtocolHandler extends ProtocolHandler {
         }
       }
 
-      def credit(msgid: AsciiBuffer, credit_value: (Int, Int)):Unit = {
+      def credit(ack_id:Long, credit_value: (Int, Int)):Unit = {
       }
 
-      def perform_ack(consumed:DeliveryResult, msgid: AsciiBuffer, uow:StoreUOW=null) = {
+      def perform_ack(consumed:DeliveryResult, ack_id:Long, uow:StoreUOW=null) = {
         async_die("The subscription ack mode does not expect ACK or NACK frames")
       }
 
     }
 
-    class TrackedAck(var credit:Option[(Session[Delivery], Int)], val ack:(DeliveryResult, StoreUOW)=>Unit)
+    class TrackedAck(val id:Long, val msgid:AsciiBuffer, var credit:Option[(Session[Delivery], Int)], val ack:(DeliveryResult, StoreUOW)=>Unit)
 
     class SessionAckHandler extends AckHandler{
-      var consumer_acks = ListBuffer[(AsciiBuffer, TrackedAck)]()
+      // in delivery order.
+      var consumer_acks = new util.ArrayDeque[TrackedAck]()
 
       def close = {
         queue.assertExecuting()
-        consumer_acks.foreach { case(_, tack) =>
+        val i = consumer_acks.iterator()
+        while( i.hasNext ) {
+          val tack = i.next()
           if( tack.ack !=null ) {
             tack.ack(Delivered, null)
           }
@@ -320,7 +429,7 @@ class StompProtocolHandler extends ProtocolHandler {
         consumer_acks = null
       }
 
-      def track(session:Session[Delivery], msgid: AsciiBuffer, size:Int, ack:(DeliveryResult, StoreUOW)=>Unit) = {
+      def track(session:Session[Delivery], ack_id:Long, msgid: AsciiBuffer, size:Int, ack:(DeliveryResult, StoreUOW)=>Unit) = {
         queue.assertExecuting()
         if( consumer_acks == null ) {
           // It can happen if we get closed.. but destination is still sending data..
@@ -328,32 +437,24 @@ class StompProtocolHandler extends ProtocolHandler {
             ack(Undelivered, null)
           }
         } else {
-          if( (protocol_version eq V1_0) || (protocol_version eq V1_2) ) {
-            // register on the connection since 1.0 acks may not include the subscription id
-            connection_ack_handlers += ( msgid -> this )
-          }
+          register(ack_id, msgid)
           if( initial_credit_window.auto_credit ) {
-            consumer_acks += msgid -> new TrackedAck(Some((session, size)), ack )
+            consumer_acks.add(new TrackedAck(ack_id, msgid, Some((session, size)), ack))
           } else {
             session_manager.delivered(session, size)
           }
         }
       }
 
-      def credit(msgid: AsciiBuffer, credit_value: (Int, Int)):Unit = {
+      def credit(ack_id:Long, credit_value: (Int, Int)):Unit = {
         queue.assertExecuting()
         if( initial_credit_window.auto_credit ) {
+          // credits all the messages delivered up to the acked one.
+          val i = consumer_acks.iterator()
           var found = false
-          val (acked, not_acked) = consumer_acks.partition{ case (id, ack)=>
-            if( id == msgid ) {
-              found = true
-              true
-            } else {
-              !found
-            }
-          }
-
-          for( (id, delivery) <- acked ) {
+          while( !found && i.hasNext ) {
+            val delivery = i.next()
+            found = delivery.id == ack_id
             for( credit <- delivery.credit ) {
               session_manager.delivered(credit._1, credit._2)
               credit_window_source.merge((1, credit._2))
@@ -367,56 +468,50 @@ class StompProtocolHandler extends ProtocolHandler {
         }
       }
 
-      def perform_ack(consumed:DeliveryResult, msgid: AsciiBuffer, uow:StoreUOW=null) = {
+      def perform_ack(consumed:DeliveryResult, ack_id:Long, uow:StoreUOW=null) = {
         queue.assertExecuting()
         assert(consumer_acks !=null)
 
         // session acks ack all previously received messages..
         var found = false
-        val (acked, not_acked) = consumer_acks.partition{ case (id, ack)=>
-          if( id == msgid ) {
-            found = true
-            true
-          } else {
-            !found
-          }
+        val i = consumer_acks.iterator()
+        while( !found && i.hasNext ) {
+          found = i.next().id == ack_id
         }
 
         if( !found ) {
-          trace("%s: ACK failed, invalid message id: %s, dest: %s".format(security_context.remote_address, msgid, addresses.mkString(",")))
+          trace("%s: ACK failed, invalid ack id: %d, dest: %s".format(security_context.remote_address, ack_id, addresses.mkString(",")))
         } else {
-          consumer_acks = not_acked
-          acked.foreach{case (id, delivery)=>
+          var done = false
+          while( !done ) {
+            val delivery = consumer_acks.poll()
+            done = delivery.id == ack_id
+            unregister(delivery)
             if( delivery.ack!=null ) {
               delivery.ack(consumed, uow)
             }
           }
         }
-
-        if( protocol_version eq V1_0 ) {
-          connection_ack_handlers.remove(msgid)
-        } else if( protocol_version eq V1_2 ) {
-          connection_ack_handlers.remove(msgid)
-          checkin_ack_id(msgid)
-        }
       }
 
     }
 
     class MessageAckHandler extends AckHandler {
-      var consumer_acks = HashMap[AsciiBuffer, TrackedAck]()
+      var consumer_acks = new LongHashMap[TrackedAck]()
 
       def close = {
         queue.assertExecuting()
-        consumer_acks.foreach { case(_, tack) =>
-          if( tack.ack !=null ) {
-            tack.ack(Delivered, null)
+        consumer_acks.foreach(new LongHashMap.Visitor[TrackedAck] {
+          def visit(key: Long, tack: TrackedAck) = {
+            if( tack.ack !=null ) {
+              tack.ack(Delivered, null)
+            }
           }
-        }
+        })
         consumer_acks = null
       }
 
-      def track(session:Session[Delivery], msgid: AsciiBuffer, size:Int, ack:(DeliveryResult, StoreUOW)=>Unit) = {
+      def track(session:Session[Delivery], ack_id:Long, msgid: AsciiBuffer, size:Int, ack:(DeliveryResult, StoreUOW)=>Unit) = {
         queue.assertExecuting();
         if( consumer_acks == null ) {
           // It can happen if we get closed.. but destination is still sending data..
@@ -424,22 +519,20 @@ class StompProtocolHandler extends ProtocolHandler {
             ack(Undelivered, null)
           }
         } else {
-          if( (protocol_version eq V1_0) || (protocol_version eq V1_2) ) {
-            // register on the connection since 1.0 acks may not include the subscription id
-            connection_ack_handlers += ( msgid -> this )
-          }
+          register(ack_id, msgid)
           if( initial_credit_window.auto_credit ) {
-            consumer_acks += msgid -> new TrackedAck(Some((session, size)), ack)
+            consumer_acks.put(ack_id, new TrackedAck(ack_id, msgid, Some((session, size)), ack))
           } else {
             session_manager.delivered(session, size)
           }
         }
       }
 
-      def credit(msgid: AsciiBuffer, credit_value: (Int, Int)):Unit = {
+      def credit(ack_id:Long, credit_value: (Int, Int)):Unit = {
         queue.assertExecuting()
         if( initial_credit_window.auto_credit ) {
-          for( delivery <- consumer_acks.get(msgid)) {
+          val delivery = consumer_acks.get(ack_id)
+          if( delivery!=null ) {
             for( credit <- delivery.credit ) {
               session_manager.delivered(credit._1, credit._2)
               credit_window_source.merge((1, credit._2))
@@ -453,22 +546,16 @@ class StompProtocolHandler extends ProtocolHandler {
         }
       }
 
-      def perform_ack(consumed:DeliveryResult, msgid: AsciiBuffer, uow:StoreUOW=null) = {
+      def perform_ack(consumed:DeliveryResult, ack_id:Long, uow:StoreUOW=null) = {
         queue.assertExecuting()
         assert(consumer_acks !=null)
-        consumer_acks.remove(msgid) match {
-          case Some(delivery) =>
+        consumer_acks.remove(ack_id) match {
+          case null => async_die("ACK failed, invalid ack id: %d".format(ack_id))
+          case delivery =>
+            unregister(delivery)
             if( delivery.ack!=null ) {
               delivery.ack(consumed, uow)
             }
-          case None => async_die("ACK failed, invalid message id: %s".format(msgid))
-        }
-
-        if( protocol_version eq V1_0 ) {
-          connection_ack_handlers.remove(msgid)
-        } else if( protocol_version eq V1_2 ) {
-          connection_ack_handlers.remove(msgid)
-          checkin_ack_id(msgid)
         }
       }
     }
@@ -502,24 +589,23 @@ class StompProtocolHandler extends ProtocolHandler {
             case "body" => (message.getBodyAs(classOf[Buffer]), "protocol/"+message.codec.id+";conv=body")
             case _ => (message.encoded, "protocol/"+message.codec.id())
           }
-          message_id_counter += 1
-          var headers =  (MESSAGE_ID -> ascii(session_id.get+message_id_counter)) :: Nil
+          var headers =  (MESSAGE_ID -> next_message_id) :: Nil
           headers ::= (CONTENT_TYPE -> ascii(content_type))
           headers ::= (CONTENT_LENGTH -> ascii(body.length().toString))
           headers ::= (DESTINATION -> encode_header(destination_parser.encode_destination(delivery.sender.tail)))
           StompFrame(MESSAGE, headers, BufferContent(body))
         }
 
-        val ack_id = if( (protocol_version eq V1_0) || (protocol_version eq V1_1) ) {
+        val ack_id = checkout_ack_id
+        val msgid = if( (protocol_version eq V1_0) || (protocol_version eq V1_1) ) {
           frame.header(MESSAGE_ID)
         } else {
-          val ack_id = checkout_ack_id
           // we need to add the ACK id.
-          frame = frame.append_headers((ACK_HEADER->ack_id)::Nil)
-          ack_id
+          frame = frame.append_headers((ACK_HEADER->encode_ack_id(ack_id))::Nil)
+          null
         }
 
-        ack_handler.track(session, ack_id, delivery.size, delivery.ack)
+        ack_handler.track(session, ack_id, msgid, delivery.size, delivery.ack)
 
         if( subscription_id != None ) {
           frame = frame.append_headers((SUBSCRIPTION, subscription_id.get)::Nil)
@@ -668,6 +754,13 @@ class StompProtocolHandler extends ProtocolHandler {
   var sink_manager:SinkMux[StompFrame] = null
   var connection_sink:Sink[StompFrame] = null
 
+  // Receipts which become ready at about the same time, like the receipts
+  // of the persistent sends completed by one store flush, get written
+  // to the connection together.
+  var receipt_source:CustomDispatchSource[StompFrame, ListBuffer[StompFrame]] = null
+
+  def queue_receipt(frame:StompFrame) = receipt_source.merge(frame)
+
   var dead = false
   var closed = false
   var consumers = Map[AsciiBuffer, StompConsumer]()
@@ -684,10 +777,14 @@ class StompProtocolHandler extends ProtocolHandler {
 
   private def queue = connection.dispatch_queue
 
-  // uses by STOMP 1.0 and 1.2 clients
-  var connection_ack_handlers = HashMap[AsciiBuffer, StompConsumer#AckHandler]()
+  // used by STOMP 1.0 clients
+  var connection_message_id_handlers = HashMap[AsciiBuffer, StompConsumer#AckHandler]()
+  // used by STOMP 1.2 clients
+  var connection_ack_handlers = new LongHashMap[StompConsumer#AckHandler]()
 
   var protocol_version:AsciiBuffer = _
+  // set when the client negotiated the use of BATCH frames.
+  var batch_frames = false
 
   var heart_beat_monitor = new HeartBeatMonitor
   val security_context = new SecurityContext
@@ -848,6 +945,11 @@ class StompProtocolHandler extends ProtocolHandler {
 
     sink_manager = new SinkMux[StompFrame](filtering_sink)
     connection_sink = new OverflowSink(sink_manager.open());
+    receipt_source = createSource(new ListEventAggregator[StompFrame](), dispatchQueue)
+    receipt_source.setEventHandler(^{
+      receipt_source.getData.foreach(connection_sink.offer(_))
+    })
+    receipt_source.resume
     resume_read
   }
 
@@ -874,6 +976,7 @@ class StompProtocolHandler extends ProtocolHandler {
       transactions.clear()
 
       producerRoutes.values().foreach{ route=>
+        route.discard_pending
         host.dispatch_queue {
           host.router.disconnect(route.addresses, route)
         }
@@ -939,6 +1042,8 @@ class StompProtocolHandler extends ProtocolHandler {
             frame.action match {
               case SEND =>
                 on_stomp_send(frame)
+              case BATCH =>
+                on_stomp_batch(frame)
               case ACK =>
                 on_stomp_ack(frame)
               case BEGIN =>
@@ -1028,6 +1133,8 @@ class StompProtocolHandler extends ProtocolHandler {
       }
     }
 
+    batch_frames = config.batch_frames!=null && config.batch_frames.booleanValue && get(headers, BATCH_HEADER) == Some(TRUE)
+
     val heart_beat = get(headers, HEART_BEAT).getOrElse(DEFAULT_HEART_BEAT)
     heart_beat.split(COMMA).map(_.ascii) match {
       case Array(cx,cy) =>
@@ -1062,6 +1169,7 @@ class StompProtocolHandler extends ProtocolHandler {
     }
 
     def send_connected = {
+      connection.handshake_completed
 
       var connected_headers = ListBuffer((VERSION, protocol_version))
 
@@ -1071,6 +1179,9 @@ class StompProtocolHandler extends ProtocolHandler {
 
       val outbound_heart_beat_header = ascii("%d,%d".format(outbound_heartbeat,inbound_heartbeat))
       connected_headers += HEART_BEAT->outbound_heart_beat_header
+      if( batch_frames ) {
+        connected_headers += BATCH_HEADER->TRUE
+      }
 
       if( host.authenticator!=null ) {
         host.authenticator.user_name(security_context).foreach{ name=>
@@ -1129,14 +1240,14 @@ class StompProtocolHandler extends ProtocolHandler {
   def on_stomp_send(frame:StompFrame) = {
     messages_received += 1
 
-    get(frame.headers, DESTINATION) match {
+    get(frame, DESTINATION) match {
       case None=>
         frame.release
         die("destination not set.")
 
       case Some(dest)=>
 
-        get(frame.headers, TRANSACTION) match {
+        get(frame, TRANSACTION) match {
           case None=>
             perform_send(frame)
           case Some(txid)=>
@@ -1159,14 +1270,164 @@ class StompProtocolHandler extends ProtocolHandler {
 
     override def dispatch_queue = queue
 
+    case class PendingSend(frames:Iterator[StompFrame], uow:StoreUOW, ack:(DeliveryResult, StoreUOW)=>Unit, batched:Boolean)
+
+    // BATCHes, and the SENDs which arrive behind them, which are waiting for
+    // the route to drain.  A transaction commit can hand us several of them
+    // at once, so they are kept in order.
+    val pending = new util.LinkedList[PendingSend]()
+
     refiller = ^ {
-      resume_read
+      if( !pending.isEmpty ) {
+        drain_pending
+      } else {
+        resume_read
+      }
+    }
+
+    def send(frame:StompFrame, uow:StoreUOW) = {
+      if( pending.isEmpty && !full ) {
+        send_via_route(addresses, this, frame, uow)
+      } else {
+        enqueue(PendingSend(Iterator(frame), uow, null, false))
+      }
+    }
+
+    def send_batch(frames:Iterator[StompFrame], uow:StoreUOW, ack:(DeliveryResult, StoreUOW)=>Unit) = {
+      enqueue(PendingSend(frames, uow, ack, true))
+    }
+
+    private def enqueue(value:PendingSend) = {
+      if( value.uow!=null ) {
+        value.uow.retain
+      }
+      pending.add(value)
+      drain_pending
+    }
+
+    def drain_pending:Unit = {
+      // send_via_route suspends reads once the route gets full, the
+      // refiller picks up the rest of the pending sends.
+      while( !pending.isEmpty && !full ) {
+        val head = pending.getFirst
+        while( head.frames.hasNext && !full ) {
+          send_via_route(addresses, this, head.frames.next, head.uow, head.ack, head.batched)
+        }
+        if( !head.frames.hasNext ) {
+          pending.removeFirst
+          if( head.uow!=null ) {
+            head.uow.release
+          }
+        }
+      }
+      if( pending.isEmpty && !full ) {
+        resume_read
+      }
+    }
+
+    def discard_pending = {
+      while( !pending.isEmpty ) {
+        val head = pending.removeFirst
+        head.frames.foreach(_.release)
+        if( head.uow!=null ) {
+          head.uow.release
+        }
+      }
     }
   }
 
+  def on_stomp_batch(frame:StompFrame) = {
+    if( !batch_frames ) {
+      frame.release
+      die("BATCH frames were not enabled in the CONNECT frame.")
+    }
+    get(frame, DESTINATION) match {
+      case None=>
+        frame.release
+        die("destination not set.")
+
+      case Some(dest)=>
+        val frames = split_batch(frame)
+        messages_received += frames.size
+
+        // one receipt covers all the messages in the batch.
+        val ack = frame.header(RECEIPT_REQUESTED) match {
+          case null => null
+          case receipt =>
+            val trimmed_receipt = receipt.deepCopy().ascii()
+            val remaining = new AtomicInteger(frames.size)
+            val rc:(DeliveryResult, StoreUOW)=>Unit = { (consumed, uow) =>
+              if( remaining.decrementAndGet() == 0 ) {
+                queue_receipt(StompFrame(RECEIPT, List((RECEIPT_ID, trimmed_receipt))))
+              }
+            }
+            if( frames.isEmpty ) {
+              queue_receipt(StompFrame(RECEIPT, List((RECEIPT_ID, trimmed_receipt))))
+            }
+            rc
+        }
+
+        get(frame, TRANSACTION) match {
+          case None=>
+            perform_batch(dest, frames, ack)
+          case Some(txid)=>
+            get_or_create_tx_queue(txid).add { uow=>
+              perform_batch(dest, frames, ack, uow)
+            }
+        }
+    }
+  }
+
+  /**
+   * The body of a BATCH frame is a sequence of message bodies, each one
+   * prefixed by its length as a 4 byte big endian int.  All the messages
+   * share the headers of the BATCH frame, so they get parsed and indexed
+   * once for the whole batch.
+   */
+  def split_batch(frame:StompFrame):Seq[StompFrame] = {
+    val body = frame.content match {
+      case x:BufferContent => x.content
+      case x:ZeroCopyContent => x.buffer
+      case _ => EMPTY_BUFFER
+    }
+    val shared = frame.headers.filterNot(x=> x._1 == CONTENT_LENGTH || x._1 == RECEIPT_REQUESTED)
+    val template = StompFrame(SEND, shared)
+    template.headers_index
+
+    val rc = ListBuffer[StompFrame]()
+    val data = body.data
+    var pos = body.offset
+    val end = body.offset + body.length
+    while( pos < end ) {
+      if( end-pos < 4 ) {
+        die("Invalid BATCH frame body: truncated message length.")
+      }
+      val length = ((data(pos) & 0xFF) << 24) | ((data(pos+1) & 0xFF) << 16) | ((data(pos+2) & 0xFF) << 8) | (data(pos+3) & 0xFF)
+      pos += 4
+      if( length < 0 || length > end-pos ) {
+        die("Invalid BATCH frame body: message length exceeds the frame.")
+      }
+      val content = BufferContent(new Buffer(data, pos, length))
+      rc += StompFrame(SEND, shared, content, false, List((CONTENT_LENGTH, ascii(length.toString)))).share_headers_index(template)
+      pos += length
+    }
+    frame.release
+    rc
+  }
 
   def perform_send(frame:StompFrame, uow:StoreUOW=null): Unit = {
-    val dest = get(frame.headers, DESTINATION).get
+    with_producer_route(get(frame, DESTINATION).get, uow) { route =>
+      route.send(frame, uow)
+    }
+  }
+
+  def perform_batch(dest:AsciiBuffer, frames:Seq[StompFrame], ack:(DeliveryResult, StoreUOW)=>Unit, uow:StoreUOW=null): Unit = {
+    with_producer_route(dest, uow) { route =>
+      route.send_batch(frames.iterator, uow, ack)
+    }
+  }
+
+  def with_producer_route(dest:AsciiBuffer, uow:StoreUOW)(func: (StompProducerRoute)=>Unit): Unit = {
     producerRoutes.get(dest) match {
       case null =>
         // Deep copy to avoid holding onto a 64k buffer
@@ -1174,6 +1435,10 @@ class StompProtocolHandler extends ProtocolHandler {
         // create the producer route...
         val route = new StompProducerRoute(trimmed_dest)   // don't process frames until producer is connected...
         connection.transport.suspendRead
+        // a transaction's uow has to stay open until the send joins it.
+        if( uow!=null ) {
+          uow.retain
+        }
         host.dispatch_queue {
           val rc = host.router.connect(route.addresses, route, security_context)
           dispatchQueue {
@@ -1184,20 +1449,51 @@ class StompProtocolHandler extends ProtocolHandler {
                 if (!connection.stopped) {
                   resume_read
                   producerRoutes.put(trimmed_dest, route)
-                  send_via_route(route.addresses, route, frame, uow)
+                  func(route)
                 }
             }
+            if( uow!=null ) {
+              uow.release
+            }
           }
         }
 
       case route =>
         // we can re-use the existing producer route
-        send_via_route(route.addresses, route, frame, uow)
+        func(route)
 
     }
   }
 
   var message_id_counter = 0L
+  var message_id_prefix:Array[Byte] = null
+
+  /**
+   * Builds the next message id, the session id followed by the
+   * decimal message counter, without going through a String.
+   */
+  def next_message_id:AsciiBuffer = {
+    message_id_counter += 1
+    if( message_id_prefix == null ) {
+      message_id_prefix = session_id.get.getBytes("UTF-8")
+    }
+    var digits = 1
+    var value = message_id_counter / 10
+    while( value != 0 ) {
+      digits += 1
+      value /= 10
+    }
+    val data = new Array[Byte](message_id_prefix.length + digits)
+    System.arraycopy(message_id_prefix, 0, data, 0, message_id_prefix.length)
+    value = message_id_counter
+    var i = data.length-1
+    while( i >= message_id_prefix.length ) {
+      data(i) = ('0' + (value % 10)).toByte
+      value /= 10
+      i -= 1
+    }
+    new AsciiBuffer(data)
+  }
 
   def encode_address(value: Array[_ <: DestinationAddress]): String = {
     destination_parser.encode_destination(value)
@@ -1229,14 +1525,14 @@ class StompProtocolHandler extends ProtocolHandler {
 //    }
   }
 
-  def updated_headers(addresses: Array[SimpleAddress], headers:HeaderMap) = {
+  def updated_headers(addresses: Array[SimpleAddress], frame:StompFrame) = {
     var rc:HeaderMap=Nil
 
     // Do we need to re-write the destination names?
     if( addresses.find(_.id.startsWith("temp.")).isDefined ) {
       rc ::= (DESTINATION -> encode_header(encode_address(addresses)))
     }
-    get(headers, REPLY_TO).foreach { value=>
+    get(frame, REPLY_TO).foreach { value=>
       // we may need to translate local temp destination names to broker destination names
       if( value.indexOf(TEMP_QUEUE)>=0 || value.indexOf(TEMP_TOPIC)>=0 ) {
         try {
@@ -1251,9 +1547,8 @@ class StompProtocolHandler extends ProtocolHandler {
     }
 
     // Do we need to add the message id?
-    if( get( headers, MESSAGE_ID) == None ) {
-      message_id_counter += 1
-      rc ::= (MESSAGE_ID -> ascii(session_id.get+message_id_counter))
+    if( frame.header(MESSAGE_ID) == null ) {
+      rc ::= (MESSAGE_ID -> next_message_id)
     }
 
     if( config.add_timestamp_header!=null ) {
@@ -1290,7 +1585,7 @@ class StompProtocolHandler extends ProtocolHandler {
     rc
   }
 
-  def send_via_route(addresses: Array[SimpleAddress], route:DeliveryProducerRoute, frame:StompFrame, uow:StoreUOW) = {
+  def send_via_route(addresses: Array[SimpleAddress], route:DeliveryProducerRoute, frame:StompFrame, uow:StoreUOW, ack:(DeliveryResult, StoreUOW)=>Unit=null, batched:Boolean=false) = {
     var storeBatch:StoreUOW=null
     // User might be asking for ack that we have processed the message..
     val receipt = frame.header(RECEIPT_REQUESTED)
@@ -1298,11 +1593,17 @@ class StompProtocolHandler extends ProtocolHandler {
     if( !route.targets.isEmpty ) {
 
       // We may need to add some headers..
-      var message = updated_headers(addresses, frame.headers) match {
+      // the messages split out of a BATCH carry their own content-length.
+      val headers = if( batched ) {
+        updated_headers(addresses, frame) ::: frame.updated_headers
+      } else {
+        updated_headers(addresses, frame)
+      }
+      var message = headers match {
         case Nil=>
-          StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous))
+          StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous).share_headers_index(frame))
         case updated_headers =>
-          StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous, updated_headers))
+          StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous, updated_headers).share_headers_index(frame))
       }
 
       val delivery = new Delivery
@@ -1311,7 +1612,7 @@ class StompProtocolHandler extends ProtocolHandler {
       delivery.persistent = message.persistent
       delivery.size = message.frame.size
       delivery.uow = uow
-      get(frame.headers, RETAIN).foreach { retain =>
+      get(frame, RETAIN).foreach { retain =>
         delivery.retain = retain match {
           case SET => RetainSet
           case REMOVE => RetainRemove
@@ -1319,12 +1620,12 @@ class StompProtocolHandler extends ProtocolHandler {
         }
       }
 
-      if( receipt!=null ) {
+      if( ack!=null ) {
+        delivery.ack = ack
+      } else if( receipt!=null ) {
         val trimmed_receipt = receipt.deepCopy().ascii()
         delivery.ack = { (consumed, uow) =>
-          dispatchQueue <<| ^{
-            connection_sink.offer(StompFrame(RECEIPT, List((RECEIPT_ID, trimmed_receipt))))
-          }
+          queue_receipt(StompFrame(RECEIPT, List((RECEIPT_ID, trimmed_receipt))))
         }
       }
 
@@ -1339,7 +1640,9 @@ class StompProtocolHandler extends ProtocolHandler {
 
     } else {
       // info("Dropping message.  No consumers interested in message.")
-      if( receipt!=null ) {
+      if( ack!=null ) {
+        ack(Consumed, null)
+      } else if( receipt!=null ) {
         connection_sink.offer(StompFrame(RECEIPT, List((RECEIPT_ID, receipt))))
       }
     }
@@ -1409,7 +1712,7 @@ class StompProtocolHandler extends ProtocolHandler {
       case Some(x)=>
         try {
           val s = decode_header(x)
-          (s, SelectorParser.parse("convert_string_expressions:"+s))
+          (s, SelectorParser.compile("convert_string_expressions:"+s))
         } catch {
           case e:FilterException =>
             die("Invalid selector expression: "+e.getMessage)
@@ -1537,31 +1840,32 @@ class StompProtocolHandler extends ProtocolHandler {
           if( !(protocol_version eq V1_0) ) {
             die("The subscription header is required")
           }
-          connection_ack_handlers.get(messageId).orElse(die("Not expecting an ACK/NACK for message id '%s'".format(messageId)))
+          connection_message_id_handlers.get(messageId).orElse(die("Not expecting an ACK/NACK for message id '%s'".format(messageId)))
         case Some(id) =>
           consumers.get(id).map(_.ack_handler).orElse(die("The subscription '%s' does not exist".format(id)))
       }
 
-      (messageId,handler)
+      (messageId,handler.map(x=> (x, x.ack_id(messageId))))
     } else {
       val id = get(headers, ID).getOrElse(null)
       if( credit==null && id==null) {
         die("id header not set")
       }
-      val handler = connection_ack_handlers.get(id).orElse(die("Not expecting an ACK/NACK for id '%s'".format(id)))
+      val ack_id = decode_ack_id(id)
+      val handler = Option(connection_ack_handlers.get(ack_id)).map(x=> (x, ack_id)).orElse(die("Not expecting an ACK/NACK for id '%s'".format(id)))
       (id,handler)
     }
 
-    handler.foreach{ handler=>
-      handler.credit(messageId, credit)
+    handler.foreach{ case (handler, ack_id) =>
+      handler.credit(ack_id, credit)
       if( messageId!=null ) {
         get(headers, TRANSACTION) match {
           case None=>
-            handler.perform_ack(consumed, messageId, null)
+            handler.perform_ack(consumed, ack_id, null)
           case Some(txid)=>
             handler.consumer.retain()
             get_or_create_tx_queue(txid).add({ uow=>
-              handler.perform_ack(consumed, messageId, uow)
+              handler.perform_ack(consumed, ack_id, uow)
               handler.consumer.release()
             }, ()=>{
               handler.consumer.release()
@@ -1597,6 +1901,8 @@ class StompProtocolHandler extends ProtocolHandler {
     get(headers, RECEIPT_REQUESTED) match {
       case Some(receipt)=>
         val frame = StompFrame(RECEIPT, List((RECEIPT_ID, receipt)))
+        // Sent directly since the connection may be shut down right after
+        // a control frame like DISCONNECT gets processed.
         dispatchQueue <<| ^{
           connection_sink.offer(frame)
         }
@@ -131,14 +131,14 @@ class StompUdpProtocol extends UdpProtocol {
           frame
         }
 
-        val virtual_host = get(frame.headers, HOST) match {
+        val virtual_host = get(frame, HOST) match {
           case Some(host) => broker.cow_virtual_hosts_by_hostname.get(host).getOrElse(default_virtual_host)
           case None => default_virtual_host
         }
 
         val (sc, updated_frame) = build_security_context(udp, frame)
         frame = updated_frame
-        val dest = get(frame.headers, DESTINATION).get.deepCopy().ascii()
+        val dest = get(frame, DESTINATION).get.deepCopy().ascii()
 
         Some(new DecodedUdpMessage {
           def message = udp
@@ -149,9 +149,9 @@ class StompUdpProtocol extends UdpProtocol {
           def delivery = {
 
             // Apply header updates...
-            val updated_frame = updated_headers(frame.headers, security_context) match {
-              case Nil=> frame.copy(action=MESSAGE)
-              case updated_headers => frame.copy(action=MESSAGE, updated_headers=updated_headers)
+            val updated_frame = updated_headers(frame, security_context) match {
+              case Nil=> frame.copy(action=MESSAGE).share_headers_index(frame)
+              case updated_headers => frame.copy(action=MESSAGE, updated_headers=updated_headers).share_headers_index(frame)
             }
 
             var message: StompFrameMessage = new StompFrameMessage(updated_frame)
@@ -160,7 +160,7 @@ class StompUdpProtocol extends UdpProtocol {
             delivery.message = message
             delivery.expiration = message.expiration
             delivery.persistent = message.persistent
-            get(updated_frame.headers, RETAIN).foreach { retain =>
+            get(updated_frame, RETAIN).foreach { retain =>
               delivery.retain = retain match {
                 case SET => RetainSet
                 case REMOVE => RetainRemove
@@ -177,7 +177,7 @@ class StompUdpProtocol extends UdpProtocol {
 
     }
 
-    def updated_headers(headers:HeaderMap, security_context:SecurityContext) = {
+    def updated_headers(frame:StompFrame, security_context:SecurityContext) = {
       import StompProtocolHandler._
       import collection.JavaConversions._
 
@@ -185,7 +185,7 @@ class StompUdpProtocol extends UdpProtocol {
       val host = default_virtual_host
 
       // Do we need to add the message id?
-      if( get( headers, MESSAGE_ID) == None ) {
+      if( frame.header(MESSAGE_ID) == null ) {
         message_id_counter += 1
         rc ::= (MESSAGE_ID -> ascii(session_id.get+message_id_counter))
       }
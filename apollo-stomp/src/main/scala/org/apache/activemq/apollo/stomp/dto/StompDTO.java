@@ -107,6 +107,13 @@ public class StompDTO extends ProtocolDTO {
     @XmlAttribute(name="buffer_size")
     public String buffer_size;
 
+    /**
+     * If set to true, clients which ask for it in the CONNECT frame
+     * are allowed to send many message bodies in a single BATCH frame.
+     */
+    @XmlAttribute(name="batch_frames")
+    public Boolean batch_frames;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -129,6 +136,8 @@ public class StompDTO extends ProtocolDTO {
             return false;
         if (buffer_size != null ? !buffer_size.equals(stompDTO.buffer_size) : stompDTO.buffer_size != null)
             return false;
+        if (batch_frames != null ? !batch_frames.equals(stompDTO.batch_frames) : stompDTO.batch_frames != null)
+            return false;
         if (destination_separator != null ? !destination_separator.equals(stompDTO.destination_separator) : stompDTO.destination_separator != null)
             return false;
         if (die_delay != null ? !die_delay.equals(stompDTO.die_delay) : stompDTO.die_delay != null) return false;
@@ -181,6 +190,7 @@ public class StompDTO extends ProtocolDTO {
         result = 31 * result + (regex_wildcard_end != null ? regex_wildcard_end.hashCode() : 0);
         result = 31 * result + (die_delay != null ? die_delay.hashCode() : 0);
         result = 31 * result + (buffer_size != null ? buffer_size.hashCode() : 0);
+        result = 31 * result + (batch_frames != null ? batch_frames.hashCode() : 0);
         return result;
     }
 }
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import javax.security.auth.Subject
+import javax.security.auth.callback.{NameCallback, Callback, CallbackHandler}
+import javax.security.auth.spi.LoginModule
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.{util => ju}
+
+object LoginCounterModule {
+  val logins = new ConcurrentHashMap[String, AtomicInteger]()
+
+  def count(user:String):Int = Option(logins.get(user)).map(_.get).getOrElse(0)
+}
+
+/**
+ * <p>
+ * A login module which does not take part in the login but counts
+ * how many times each user went through the JAAS login.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LoginCounterModule extends LoginModule {
+  import LoginCounterModule._
+
+  var callback_handler: CallbackHandler = _
+
+  def initialize(subject: Subject, callback_handler: CallbackHandler, shared_state: ju.Map[String, _], options: ju.Map[String, _]): Unit = {
+    this.callback_handler = callback_handler
+  }
+
+  def login: Boolean = {
+    val callback = new NameCallback("Username: ")
+    callback_handler.handle(Array[Callback](callback))
+    val user = callback.getName
+    if( user!=null ) {
+      logins.putIfAbsent(user, new AtomicInteger())
+      logins.get(user).incrementAndGet()
+    }
+    false
+  }
+
+  def commit: Boolean = false
+
+  def abort: Boolean = false
+
+  def logout: Boolean = false
+}
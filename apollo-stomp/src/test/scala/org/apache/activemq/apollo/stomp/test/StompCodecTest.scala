@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.stomp._
+import org.apache.activemq.apollo.stomp.Stomp._
+import org.fusesource.hawtbuf._
+import org.fusesource.hawtbuf.Buffer._
+import org.fusesource.hawtdispatch.transport.{ProtocolCodec, Transport}
+import java.lang.reflect.{Method, InvocationHandler, Proxy}
+import java.nio.ByteBuffer
+import java.nio.channels.{Channels, GatheringByteChannel}
+import java.io.ByteArrayInputStream
+
+/**
+ * <p>
+ * Round trips frames through the StompCodec to check that frames which
+ * have parts of them written directly to the transport still come out
+ * intact and correctly terminated.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StompCodecTest extends FunSuiteSupport with ShouldMatchers {
+
+  val BODY_SIZE = StompCodec.direct_write_threshold * 2
+
+  class WriteChannel extends GatheringByteChannel {
+    val data = new ByteArrayOutputStream()
+    def isOpen = true
+    def close() = {}
+    def write(src: ByteBuffer): Int = {
+      val rc = src.remaining()
+      while( src.hasRemaining ) {
+        data.write(src.get())
+      }
+      rc
+    }
+    def write(srcs: Array[ByteBuffer]): Long = write(srcs, 0, srcs.length)
+    def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long = {
+      var rc = 0L
+      for( i <- offset until offset+length ) {
+        rc += write(srcs(i))
+      }
+      rc
+    }
+  }
+
+  // We only need the channels of the transport to drive the codec.
+  def transport(read:AnyRef, write:AnyRef) = Proxy.newProxyInstance(getClass.getClassLoader, Array(classOf[Transport]), new InvocationHandler {
+    def invoke(proxy: AnyRef, method: Method, args: Array[AnyRef]) = method.getName match {
+      case "getReadChannel" => read
+      case "getWriteChannel" => write
+      case _ => null
+    }
+  }).asInstanceOf[Transport]
+
+  def round_trip(frames:StompFrame*):List[StompFrame] = {
+    val channel = new WriteChannel
+    val encoder = new StompCodec
+    encoder.setTransport(transport(null, channel))
+    frames.foreach(encoder.write(_))
+    while( encoder.flush() != ProtocolCodec.BufferState.EMPTY ) {}
+
+    val decoder = new StompCodec
+    decoder.setTransport(transport(Channels.newChannel(new ByteArrayInputStream(channel.data.toByteArray)), null))
+    // the decoder fails with an EOF once the input is used up, so only
+    // read as many frames as were written.
+    frames.map(x=> decoder.read().asInstanceOf[StompFrame]).toList
+  }
+
+  def body(id:Int) = {
+    val rc = new Array[Byte](BODY_SIZE)
+    java.util.Arrays.fill(rc, ('a'+id).toByte)
+    new Buffer(rc)
+  }
+
+  // A frame as the codec decodes it: the headers and body are slices of
+  // one buffer holding the original frame.
+  def contiguous_frame(id:Int) = {
+    val destination = "/queue/"+id
+    val frame = new DataByteArrayOutputStream()
+    frame.write(ascii("SEND\ndestination:"+destination+"\n\n"))
+    frame.write(body(id))
+    val data = frame.toBuffer.data
+    def slice(offset:Int, length:Int) = new Buffer(data, offset, length).ascii
+    val body_offset = "SEND\ndestination:".length + destination.length + 2
+    StompFrame(slice(0, 4), List((slice(5, 11), slice(17, destination.length))), BufferContent(new Buffer(data, body_offset, BODY_SIZE)), true)
+  }
+
+  def split_frame(id:Int) = {
+    StompFrame(SEND, List((DESTINATION, ascii("/queue/"+id))), BufferContent(body(id)))
+  }
+
+  def check(frames:List[StompFrame]) = {
+    frames.size should be(2)
+    for( (frame, id) <- frames.zipWithIndex ) {
+      frame.action should be(SEND)
+      frame.header(DESTINATION) should be(ascii("/queue/"+id))
+      frame.content.asInstanceOf[BufferContent].content should be(body(id))
+    }
+  }
+
+  test("back to back contiguous frames above the direct write threshold") {
+    val frame = contiguous_frame(0)
+    frame.are_headers_in_content_buffer should be(true)
+    check(round_trip(frame, contiguous_frame(1)))
+  }
+
+  test("back to back contiguous frames with updated headers") {
+    val frames = round_trip(contiguous_frame(0).append_headers(List((MESSAGE_ID, ascii("0")))), contiguous_frame(1))
+    check(frames)
+    frames.head.header(MESSAGE_ID) should be(ascii("0"))
+  }
+
+  test("back to back non contiguous frames above the direct write threshold") {
+    val frame = split_frame(0)
+    frame.are_headers_in_content_buffer should be(false)
+    check(round_trip(frame, split_frame(1)))
+  }
+
+}
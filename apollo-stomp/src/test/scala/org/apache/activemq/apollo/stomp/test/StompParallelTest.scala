@@ -23,6 +23,7 @@ import org.apache.activemq.apollo.broker._
 import java.net.{SocketTimeoutException, InetSocketAddress}
 import org.apache.activemq.apollo.stomp.{Stomp, StompProtocolHandler}
 import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.dto.ConnectorStatusDTO
 
 /**
  * These tests can be run in parallel against a single Apollo broker.
@@ -39,6 +40,15 @@ class StompParallelTest extends StompTestSupport with BrokerParallelTestExecutio
     connect("1.1")
   }
 
+  test("DISCONNECT with a receipt gets a RECEIPT") {
+    connect("1.1")
+    client.write(
+      "DISCONNECT\n" +
+              "receipt:disconnect-receipt\n" +
+              "\n")
+    wait_for_receipt("disconnect-receipt")
+  }
+
   test("Stomp 1.1 CONNECT /w STOMP Action") {
 
     client.open("localhost", port)
@@ -361,6 +371,204 @@ class StompParallelTest extends StompTestSupport with BrokerParallelTestExecutio
     assert_received(4)
   }
 
+  test("Topic consumers past the fanout_threshold get sharded") {
+    def fanout_shards(name:String) = {
+      val host = broker.default_virtual_host
+      host.dispatch_queue.future {
+        val router = host.router.asInstanceOf[LocalRouter]
+        router.local_topic_domain.destination_by_id.get(name).get.fanout_shards.size
+      }.await()
+    }
+
+    connect("1.1")
+    val consumers = for( i <- 0 until 6 ) yield {
+      val c = new StompClient
+      connect("1.1", c)
+      subscribe("0", "/topic/fanout.test", c = c)
+      c
+    }
+
+    // the first 3 consumers are not sharded, the rest are spread
+    // over the 2 configured shards.
+    fanout_shards("fanout.test") should be(2)
+
+    for( i <- 0 until 10 ) {
+      async_send("/topic/fanout.test", i)
+    }
+    consumers.foreach { c =>
+      for( i <- 0 until 10 ) {
+        assert_received(i, c = c)
+      }
+    }
+
+    // the shards get closed once their consumers leave.
+    consumers.foreach(_.close)
+    within(5, SECONDS) {
+      fanout_shards("fanout.test") should be(0)
+    }
+
+    val c = new StompClient
+    connect("1.1", c)
+    subscribe("0", "/topic/fanout.test", c = c)
+    async_send("/topic/fanout.test", "after")
+    assert_received("after", c = c)
+    c.close
+  }
+
+  test("Connectors stop accepting while at their handshake_limit") {
+    val connector = broker.connectors.get("limited").get
+    def status = connector.dispatch_queue.future {
+      connector.status.asInstanceOf[ConnectorStatusDTO]
+    }.await()
+    val port = connector_port("limited").get
+
+    // a client which does not send it's CONNECT frame keeps the
+    // connector at it's limit.
+    val first = new StompClient
+    first.open("localhost", port)
+    clients ::= first
+    within(5, SECONDS) {
+      val rc = status
+      rc.handshaking should be(1L)
+      rc.accepting should be(false)
+      rc.throttled_counter should be(1L)
+    }
+
+    // these wait in the listen backlog.
+    val waiting = for( i <- 0 until 3 ) yield new java.net.Socket("localhost", port)
+
+    // Once the first client connects the next one gets accepted, the
+    // ones the transport server accepted along with it get shed.
+    first.write(
+      "CONNECT\n" +
+      "accept-version:1.1\n" +
+      "host:localhost\n" +
+      "\n")
+    first.receive() should startWith("CONNECTED\n")
+    within(5, SECONDS) {
+      val rc = status
+      rc.handshaking should be(1L)
+      rc.accepting should be(false)
+      rc.throttled_counter should be(2L)
+      rc.shed_counter should be(2L)
+    }
+
+    waiting.foreach(_.close)
+    within(5, SECONDS) {
+      status.accepting should be(true)
+    }
+  }
+
+  test("BATCH frames send many messages which share one set of headers") {
+    client.version = "1.2"
+    val connected = connect_request("1.2", client, "batch:true\n", "batch")
+    connected should startWith("CONNECTED\n")
+    connected should include("batch:true\n")
+
+    val body = new java.io.ByteArrayOutputStream()
+    val out = new java.io.DataOutputStream(body)
+    List("one", "two", "three").foreach { x =>
+      out.writeInt(x.length)
+      out.write(x.getBytes("UTF-8"))
+    }
+    client.write((
+      "BATCH\n" +
+      "destination:/queue/batch\n" +
+      "receipt:0\n" +
+      "content-length:" + body.size + "\n" +
+      "\n").getBytes("UTF-8") ++ body.toByteArray)
+    wait_for_receipt("0")
+
+    subscribe("0", "/queue/batch")
+    assert_received("one")
+    assert_received("two")
+    assert_received("three")
+  }
+
+  test("Several BATCH frames to one destination in a transaction deliver every message") {
+    client.version = "1.2"
+    val connected = connect_request("1.2", client, "batch:true\n", "batch")
+    connected should startWith("CONNECTED\n")
+
+    // big enough messages so that the route fills up while the
+    // commit is still handing it batches.
+    val padding = "x" * 1024
+    def batch(prefix:String) = {
+      val body = new java.io.ByteArrayOutputStream()
+      val out = new java.io.DataOutputStream(body)
+      for( i <- 0 until 100 ) {
+        val data = (prefix + "-" + i + "-" + padding).getBytes("UTF-8")
+        out.writeInt(data.length)
+        out.write(data)
+      }
+      client.write((
+        "BATCH\n" +
+        "destination:/queue/batch-tx\n" +
+        "transaction:x\n" +
+        "receipt:" + prefix + "\n" +
+        "content-length:" + body.size + "\n" +
+        "\n").getBytes("UTF-8") ++ body.toByteArray)
+    }
+
+    client.write(
+      "BEGIN\n" +
+      "transaction:x\n" +
+      "\n")
+    batch("a")
+    batch("b")
+    client.write(
+      "SEND\n" +
+      "destination:/queue/batch-tx\n" +
+      "transaction:x\n" +
+      "\n" +
+      "last")
+    client.write(
+      "COMMIT\n" +
+      "transaction:x\n" +
+      "receipt:commit\n" +
+      "\n")
+
+    val receipts = for( i <- 0 until 3 ) yield {
+      val frame = client.receive()
+      frame should startWith("RECEIPT\n")
+      frame.substring(frame.indexOf("receipt-id:") + "receipt-id:".length).trim
+    }
+    receipts.toSet should be(Set("a", "b", "commit"))
+
+    subscribe("0", "/queue/batch-tx")
+    for( prefix <- List("a", "b"); i <- 0 until 100 ) {
+      assert_received(prefix + "-" + i + "-" + padding)
+    }
+    assert_received("last")
+  }
+
+  test("Frames written through a connector with a max_write_latency arrive in order") {
+    connect("1.1", client, "", "coalescing")
+    subscribe("0", "/queue/coalescing")
+    for( i <- 0 until 500 ) {
+      async_send("/queue/coalescing", i)
+    }
+    sync_send("/queue/coalescing", "end")
+    for( i <- 0 until 500 ) {
+      assert_received(i)
+    }
+    assert_received("end")
+
+    // held back frames still go out when the connection gets closed.
+    client.write("DISCONNECT\n" + "receipt:coalesced-disconnect\n" + "\n")
+    wait_for_receipt("coalesced-disconnect")
+  }
+
+  test("BATCH frames are rejected when they were not negotiated") {
+    connect("1.2")
+    client.write(
+      "BATCH\n" +
+      "destination:/queue/batch-rejected\n" +
+      "content-length:0\n" +
+      "\n")
+    client.receive() should startWith("ERROR\n")
+  }
+
   test("Setting `from-seq` header to -1 results in subscription starting at end of the queue.") {
     skip_if_using_store
     connect("1.1")
@@ -63,6 +63,51 @@ class StompSecurityTest extends StompTestSupport {
 
   }
 
+  test("Successful logins get cached") {
+    connect("1.1", client,
+      "login:cached_login\n" +
+              "passcode:cached_login\n")
+    LoginCounterModule.count("cached_login") should be(1)
+
+    val other = new StompClient
+    connect("1.1", other,
+      "login:cached_login\n" +
+              "passcode:cached_login\n")
+    LoginCounterModule.count("cached_login") should be(1)
+
+    // a different password is not a cache hit.
+    val frame = connect_request("1.1", new StompClient,
+      "login:cached_login\n" +
+              "passcode:wrong\n")
+    frame should startWith("ERROR\n")
+    LoginCounterModule.count("cached_login") should be(2)
+  }
+
+  test("Failed logins get cached") {
+    for( i <- 0 until 2 ) {
+      val frame = connect_request("1.1", new StompClient,
+        "login:failed_login\n" +
+                "passcode:failed_login\n")
+      frame should startWith("ERROR\n")
+      frame should include("message:Authentication failed.")
+    }
+    LoginCounterModule.count("failed_login") should be(1)
+  }
+
+  test("Cached logins expire") {
+    connect("1.1", client,
+      "login:expired_login\n" +
+              "passcode:expired_login\n")
+    LoginCounterModule.count("expired_login") should be(1)
+
+    // cache_ttl is 2 seconds.
+    Thread.sleep(2500)
+    connect("1.1", new StompClient,
+      "login:expired_login\n" +
+              "passcode:expired_login\n")
+    LoginCounterModule.count("expired_login") should be(2)
+  }
+
   test("Connect with valid id password that can connect") {
     connect("1.1", client,
       "login:can_only_connect\n" +
@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+/**
+ * A set of 16 bit values (like protocol message ids) stored as a
+ * bitmap.  The bitmap is split into pages which only get allocated
+ * while they hold values so that a mostly empty set stays small.
+ * It's not thread safe.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShortBitSet {
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_BITS = 1 << PAGE_SHIFT;
+    private static final int PAGE_COUNT = 0x10000 >>> PAGE_SHIFT;
+
+    // allocated on the first add so that empty sets are tiny.
+    private long[][] pages;
+    private int[] page_sizes;
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int value) {
+        if (size == 0) {
+            return false;
+        }
+        value &= 0xFFFF;
+        long[] page = pages[value >>> PAGE_SHIFT];
+        return page != null && (page[(value & (PAGE_BITS - 1)) >>> 6] & (1L << value)) != 0;
+    }
+
+    /**
+     * @return true if the value was not already in the set.
+     */
+    public boolean add(int value) {
+        if (pages == null) {
+            pages = new long[PAGE_COUNT][];
+            page_sizes = new int[PAGE_COUNT];
+        }
+        value &= 0xFFFF;
+        int p = value >>> PAGE_SHIFT;
+        long[] page = pages[p];
+        if (page == null) {
+            page = pages[p] = new long[PAGE_BITS >>> 6];
+        }
+        int i = (value & (PAGE_BITS - 1)) >>> 6;
+        long bit = 1L << value;
+        if ((page[i] & bit) != 0) {
+            return false;
+        }
+        page[i] |= bit;
+        page_sizes[p]++;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return true if the value was in the set.
+     */
+    public boolean remove(int value) {
+        if (size == 0) {
+            return false;
+        }
+        value &= 0xFFFF;
+        int p = value >>> PAGE_SHIFT;
+        long[] page = pages[p];
+        if (page == null) {
+            return false;
+        }
+        int i = (value & (PAGE_BITS - 1)) >>> 6;
+        long bit = 1L << value;
+        if ((page[i] & bit) == 0) {
+            return false;
+        }
+        page[i] &= ~bit;
+        size--;
+        if (--page_sizes[p] == 0) {
+            pages[p] = null;
+        }
+        return true;
+    }
+
+    public void clear() {
+        pages = null;
+        page_sizes = null;
+        size = 0;
+    }
+
+    /**
+     * @return the values in the set in ascending order.
+     */
+    public int[] toArray() {
+        int[] rc = new int[size];
+        int pos = 0;
+        for (int p = 0; size > 0 && p < PAGE_COUNT; p++) {
+            long[] page = pages[p];
+            if (page != null) {
+                for (int i = 0; i < page.length; i++) {
+                    long word = page[i];
+                    while (word != 0) {
+                        int bit = Long.numberOfTrailingZeros(word);
+                        rc[pos++] = (p << PAGE_SHIFT) | (i << 6) | bit;
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return rc;
+    }
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.TimeUnit
+
+/**
+ * <p>
+ * A hashed timer wheel.  It lets a large number of mostly idle
+ * connections schedule low resolution timeouts (like keep alive checks)
+ * without each of them holding on to it's own timer task.  A single
+ * task ticks the wheel and it only runs while timeouts are scheduled.
+ * </p>
+ * <p>
+ * Timeouts fire on the wheel's dispatch queue, so callbacks should
+ * dispatch any real work to their own queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class TimerWheel(name:String, val tick:Long=1000, val slots:Int=512) {
+
+  class Timeout(val deadline:Long, val func:()=>Unit) {
+    private[TimerWheel] var slot = -1
+    private[TimerWheel] var prev:Timeout = null
+    private[TimerWheel] var next:Timeout = null
+
+    def cancel:Unit = TimerWheel.this.synchronized {
+      unlink(this)
+    }
+  }
+
+  val queue = createQueue(name)
+  private val wheel = new Array[Timeout](slots)
+  private var cursor = 0
+  private var size = 0
+  private var ticking = false
+  private var now = System.currentTimeMillis()
+
+  /**
+   * Schedules func to run after at least delay milliseconds.  It may run
+   * up to one tick later than that.
+   */
+  def schedule(delay:Long)(func: =>Unit):Timeout = synchronized {
+    if( !ticking ) {
+      // The wheel only advances while it ticks, so catch up with the
+      // time that went by while it was idle.
+      now = System.currentTimeMillis()
+    }
+    // the current tick is partly over, so it does not count.
+    val ticks = ((delay + tick - 1) / tick) + 1
+    val timeout = new Timeout(now + ticks*tick, func _)
+    link(timeout, ((cursor + ticks) % slots).toInt)
+    if( !ticking ) {
+      ticking = true
+      queue.after(tick, TimeUnit.MILLISECONDS) {
+        on_tick
+      }
+    }
+    timeout
+  }
+
+  private def link(timeout:Timeout, slot:Int) = {
+    val head = wheel(slot)
+    timeout.slot = slot
+    timeout.next = head
+    if( head!=null ) {
+      head.prev = timeout
+    }
+    wheel(slot) = timeout
+    size += 1
+  }
+
+  private def unlink(timeout:Timeout) = {
+    if( timeout.slot >= 0 ) {
+      if( timeout.prev!=null ) {
+        timeout.prev.next = timeout.next
+      } else {
+        wheel(timeout.slot) = timeout.next
+      }
+      if( timeout.next!=null ) {
+        timeout.next.prev = timeout.prev
+      }
+      timeout.slot = -1
+      timeout.prev = null
+      timeout.next = null
+      size -= 1
+    }
+  }
+
+  private def on_tick:Unit = {
+    var expired:List[Timeout] = Nil
+    synchronized {
+      now += tick
+      cursor = (cursor + 1) % slots
+      var cur = wheel(cursor)
+      while( cur!=null ) {
+        val next = cur.next
+        // timeouts more than one lap away stay in the slot.
+        if( cur.deadline <= now ) {
+          unlink(cur)
+          expired ::= cur
+        }
+        cur = next
+      }
+      if( size == 0 ) {
+        ticking = false
+      } else {
+        queue.after(tick, TimeUnit.MILLISECONDS) {
+          on_tick
+        }
+      }
+    }
+    expired.foreach(_.func())
+  }
+
+}
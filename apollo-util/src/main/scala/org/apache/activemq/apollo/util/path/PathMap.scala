@@ -30,7 +30,9 @@ import java.util.TreeSet
   * path steps. So looking up the values for "TEST.*" or "*.TEST" will be
   * pretty fast. <br>
   * Looking up of a value could return a single value or a List of matching
-  * values if a wildcard or composite path is used.
+  * values if a wildcard or composite path is used. <br>
+  * Lookups do not lock so they can run concurrently with each other and
+  * with updates, updates are serialized.
   *
   * @version $Revision: 1.3 $
   */
@@ -49,22 +51,46 @@ class PathMap[Value] {
     return findWildcardMatches(key)
   }
 
-  def put(key: Path, value: Value): Unit = {
+  /**
+    * Calls func with each value matching the given path until it returns
+    * false.  Unlike get, it does not build a result set, but a value
+    * may be passed to func more than once if it matches in more than one way.
+    */
+  def foreach_match(key: Path)(func: (Value)=>Boolean): Unit = {
+    root.visit_matches(key.parts, func)
+  }
+
+  /**
+    * @return the first value found which matches the given path.
+    */
+  def first_match(key: Path): Option[Value] = {
+    var rc: Option[Value] = None
+    root.visit_matches(key.parts, { value =>
+      rc = Some(value)
+      false
+    })
+    rc
+  }
+
+  def put(key: Path, value: Value): Unit = synchronized {
     root.add(key, 0, value)
   }
 
   /**
     * Removes the value from the associated path
     */
-  def remove(path: Path, value: Value): Boolean = {
+  def remove(path: Path, value: Value): Boolean = synchronized {
     return root.remove(path, 0, value)
   }
 
   def getRootNode = root
 
   protected def findWildcardMatches(path: Path): Set[Value] = {
-    var answer: HashSet[Value] = new HashSet[Value]
-    root.appendMatchingValues(answer, path, 0)
+    val answer: HashSet[Value] = new HashSet[Value]
+    root.visit_matches(path.parts, { value =>
+      answer.add(value)
+      true
+    })
     return answer
   }
 
@@ -72,7 +98,7 @@ class PathMap[Value] {
     * @param key
     * @return
     */
-  def removeAll(key: Path): Set[Value] = {
+  def removeAll(key: Path): Set[Value] = synchronized {
     var rc: HashSet[Value] = new HashSet[Value]
     root.removeAll(rc, key, 0)
     return rc
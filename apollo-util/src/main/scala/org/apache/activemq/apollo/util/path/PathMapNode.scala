@@ -1,39 +1,92 @@
 /**
-  * Licensed to the Apache Software Foundation (ASF) under one or more
-  * contributor license agreements.  See the NOTICE file distributed with
-  * this work for additional information regarding copyright ownership.
-  * The ASF licenses this file to You under the Apache License, Version 2.0
-  * (the "License"); you may not use this file except in compliance with
-  * the License.  You may obtain a copy of the License at
-  *
-  *      http://www.apache.org/licenses/LICENSE-2.0
-  *
-  * Unless required by applicable law or agreed to in writing, software
-  * distributed under the License is distributed on an "AS IS" BASIS,
-  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-  * See the License for the specific language governing permissions and
-  * limitations under the License.
-  */
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
 package org.apache.activemq.apollo.util.path
 
 import java.util.ArrayList
 import java.util.Collection
-import java.util.HashMap
 import java.util.HashSet
-import java.util.List
-import java.util.Map
 import java.util.Set
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.lang.ref.WeakReference
 import collection.JavaConversions._
 
+object PathMapNode {
+
+  /**
+   * Once a node has more literal children than this, they get
+   * stored in a hash map instead of an array.
+   */
+  val MAX_ARRAY_CHILDREN = 8
+
+  private val EMPTY = new Array[AnyRef](0)
+
+  private val interned = new WeakHashMap[Part, WeakReference[Part]]()
+
+  /**
+   * Lets the nodes of the same literal part in different branches of
+   * the tree (like the `cmd` of `devices.<id>.cmd`) share one Part.
+   */
+  def intern(part:Part):Part = part match {
+    case x:LiteralPart => interned.synchronized {
+      val ref = interned.get(x)
+      val rc = if( ref==null ) null else ref.get
+      if( rc!=null ) {
+        rc
+      } else {
+        interned.put(x, new WeakReference[Part](x))
+        x
+      }
+    }
+    case x => x
+  }
+
+  private def append(array:Array[AnyRef], value:AnyRef) = {
+    val rc = new Array[AnyRef](array.length+1)
+    System.arraycopy(array, 0, rc, 0, array.length)
+    rc(array.length) = value
+    rc
+  }
+
+  private def remove(array:Array[AnyRef], index:Int) = {
+    if( array.length == 1 ) {
+      null
+    } else {
+      val rc = new Array[AnyRef](array.length-1)
+      System.arraycopy(array, 0, rc, 0, index)
+      System.arraycopy(array, index+1, rc, index, rc.length-index)
+      rc
+    }
+  }
+}
+
 /**
   * An implementation class used to implement {@link PathMap}
   *
+  * Lookups do not lock or allocate.  The children and values of a node
+  * are held in fields which get replaced on change (copy on write) or
+  * in concurrent maps, so a reader always sees a consistent node.
+  * Changes must be serialized by the {@link PathMap}.
+  *
   * @version $Revision: 1.2 $
   */
 class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value] {
+  import PathMapNode._
 
-  val childNodes: Map[Part, PathNode[Value]] = new HashMap[Part, PathNode[Value]]
-  val values: List[Value] = new ArrayList[Value]
   var part: Part = RootPart
 
   var pathLength:Int = if (parent == null) {
@@ -42,23 +95,90 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
     parent.pathLength + 1
   }
 
+  // null, an Array of nodes or a ConcurrentHashMap[Part, PathMapNode] once it gets big.
+  @volatile private var literal_children:AnyRef = null
+  @volatile private var any_child:PathMapNode[Value] = null
+  @volatile private var any_descendant:PathMapNode[Value] = null
+  @volatile private var regex_children:Array[AnyRef] = null
+  @volatile private var value_array:Array[AnyRef] = null
+
+  private def literal_child(part: Part): PathMapNode[Value] = literal_children match {
+    case null => null
+    case nodes:Array[AnyRef] =>
+      var i = 0
+      while( i < nodes.length ) {
+        val node = nodes(i).asInstanceOf[PathMapNode[Value]]
+        if( (node.part eq part) || node.part == part ) {
+          return node
+        }
+        i += 1
+      }
+      null
+    case map:ConcurrentHashMap[_, _] =>
+      map.get(part).asInstanceOf[PathMapNode[Value]]
+  }
+
   /**
     * Returns the child node for the given named path or null if it does not
     * exist
     */
-  def getChild(part: Part): PathMapNode[Value] = {
-    return childNodes.get(part).asInstanceOf[PathMapNode[Value]]
+  def getChild(part: Part): PathMapNode[Value] = part match {
+    case AnyChildPart => any_child
+    case AnyDescendantPart => any_descendant
+    case x:RegexChildPart =>
+      val nodes = regex_children
+      if( nodes!=null ) {
+        var i = 0
+        while( i < nodes.length ) {
+          val node = nodes(i).asInstanceOf[PathMapNode[Value]]
+          if( node.part == part ) {
+            return node
+          }
+          i += 1
+        }
+      }
+      null
+    case x => literal_child(x)
   }
 
   /**
     * Returns the child nodes
     */
   def getChildren: Collection[PathNode[Value]] = {
-    return childNodes.values
+    val rc = new ArrayList[PathNode[Value]]
+    literal_children match {
+      case null =>
+      case nodes:Array[AnyRef] => nodes.foreach(x=> rc.add(x.asInstanceOf[PathMapNode[Value]]))
+      case map:ConcurrentHashMap[_, _] => map.values.foreach(x=> rc.add(x.asInstanceOf[PathMapNode[Value]]))
+    }
+    if( regex_children!=null ) {
+      regex_children.foreach(x=> rc.add(x.asInstanceOf[PathMapNode[Value]]))
+    }
+    if( any_child!=null ) {
+      rc.add(any_child)
+    }
+    if( any_descendant!=null ) {
+      rc.add(any_descendant)
+    }
+    rc
   }
 
   def getChildCount: Int = {
-    return childNodes.size
+    var rc = literal_children match {
+      case null => 0
+      case nodes:Array[AnyRef] => nodes.length
+      case map:ConcurrentHashMap[_, _] => map.size
+    }
+    if( regex_children!=null ) {
+      rc += regex_children.length
+    }
+    if( any_child!=null ) {
+      rc += 1
+    }
+    if( any_descendant!=null ) {
+      rc += 1
+    }
+    rc
   }
 
   /**
@@ -66,28 +186,112 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
     * it does not yet exist
     */
   def getChildOrCreate(part: Part): PathMapNode[Value] = {
-    var answer: PathMapNode[Value] = childNodes.get(part).asInstanceOf[PathMapNode[Value]]
+    var answer: PathMapNode[Value] = getChild(part)
     if (answer == null) {
       answer = createChildNode
-      answer.part = part
-      childNodes.put(part, answer)
+      answer.part = intern(part)
+      addChild(answer)
     }
     return answer
   }
 
+  protected def addChild(node: PathMapNode[Value]): Unit = node.part match {
+    case AnyChildPart =>
+      any_child = node
+    case AnyDescendantPart =>
+      any_descendant = node
+    case x:RegexChildPart =>
+      regex_children = append(if( regex_children==null ) EMPTY else regex_children, node)
+    case x =>
+      literal_children match {
+        case null =>
+          literal_children = Array[AnyRef](node)
+        case nodes:Array[AnyRef] =>
+          if( nodes.length < MAX_ARRAY_CHILDREN ) {
+            literal_children = append(nodes, node)
+          } else {
+            val map = new ConcurrentHashMap[Part, PathMapNode[Value]](MAX_ARRAY_CHILDREN*4)
+            nodes.foreach { x =>
+              val child = x.asInstanceOf[PathMapNode[Value]]
+              map.put(child.part, child)
+            }
+            map.put(node.part, node)
+            literal_children = map
+          }
+        case map:ConcurrentHashMap[_, _] =>
+          map.asInstanceOf[ConcurrentHashMap[Part, PathMapNode[Value]]].put(node.part, node)
+      }
+  }
+
+  protected def removeChild(node: PathMapNode[Value]): Unit = {
+    node.part match {
+      case AnyChildPart =>
+        if( any_child eq node ) {
+          any_child = null
+        }
+      case AnyDescendantPart =>
+        if( any_descendant eq node ) {
+          any_descendant = null
+        }
+      case x:RegexChildPart =>
+        if( regex_children!=null ) {
+          val i = regex_children.indexWhere(_ eq node)
+          if( i >= 0 ) {
+            regex_children = remove(regex_children, i)
+          }
+        }
+      case x =>
+        literal_children match {
+          case null =>
+          case nodes:Array[AnyRef] =>
+            val i = nodes.indexWhere(_ eq node)
+            if( i >= 0 ) {
+              literal_children = remove(nodes, i)
+            }
+          case map:ConcurrentHashMap[_, _] =>
+            map.remove(node.part)
+            if( map.isEmpty ) {
+              literal_children = null
+            }
+        }
+    }
+    pruneIfEmpty
+  }
+
   /**
-    * Returns a mutable List of the values available at this node in the tree
+    * Returns a List of the values available at this node in the tree
     */
-  def getValues: List[Value] = {
-    return values
+  def getValues: Collection[Value] = {
+    val rc = new ArrayList[Value]
+    val values = value_array
+    if( values!=null ) {
+      values.foreach(x=> rc.add(x.asInstanceOf[Value]))
+    }
+    rc
+  }
+
+  def addValue(value: Value): Unit = {
+    value_array = append(if( value_array==null ) EMPTY else value_array, value.asInstanceOf[AnyRef])
+  }
+
+  def removeValue(value: Value): Boolean = {
+    val values = value_array
+    if( values!=null ) {
+      val i = values.indexWhere(_ == value)
+      if( i >= 0 ) {
+        value_array = remove(values, i)
+        return true
+      }
+    }
+    false
   }
 
   /**
-    * Returns a mutable List of the values available at this node in the tree
+    * Removes and returns the values available at this node in the tree
     */
-  def removeValues: List[Value] = {
-    var v: ArrayList[Value] = new ArrayList[Value](values)
-    values.clear
+  def removeValues: Collection[Value] = {
+    var v = getValues
+    value_array = null
     pruneIfEmpty
     return v
   }
@@ -112,22 +316,28 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
   }
 
   def add(path: Path, idx: Int, value: Value): Unit = {
-    if (idx >= path.parts.size) {
-      values.add(value)
-    }
-    else {
-      getChildOrCreate(path.parts.get(idx)).add(path, idx + 1, value)
+    var node = this
+    var parts = path.parts.drop(idx)
+    while( !parts.isEmpty ) {
+      node = node.getChildOrCreate(parts.head)
+      parts = parts.tail
     }
+    node.addValue(value)
   }
 
   def remove(path: Path, idx: Int, value: Value): Boolean = {
-    if (idx >= path.parts.size) {
-      var rc = values.remove(value)
-      pruneIfEmpty
-      return rc
-    } else {
-      return getChildOrCreate(path.parts.get(idx)).remove(path, idx+1, value)
+    var node = this
+    var parts = path.parts.drop(idx)
+    while( !parts.isEmpty ) {
+      node = node.getChild(parts.head)
+      if( node == null ) {
+        return false
+      }
+      parts = parts.tail
     }
+    val rc = node.removeValue(value)
+    node.pruneIfEmpty
+    rc
   }
 
   def removeAll(answer: Set[Value], path: Path, startIndex: Int): Unit = {
@@ -160,9 +370,9 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
   }
 
   def appendDescendantValues(answer: Set[Value]): Unit = {
-    answer.addAll(values)
-    for (child <- childNodes.values) {
-      child.appendDescendantValues(answer)
+    visit_descendants { value =>
+      answer.add(value)
+      true
     }
   }
 
@@ -177,57 +387,182 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
     * Matches any entries in the map containing wildcards
     */
   def appendMatchingWildcards(answer: Set[Value], parts: Path, idx: Int): Unit = {
-    if (idx - 1 > pathLength) {
-      return
-    }
-
-    childNodes.foreach { case (path,node) =>
-      path match {
-        case AnyChildPart => node.appendMatchingValues(answer, parts, idx + 1)
-        case x:RegexChildPart => node.appendMatchingValues(answer, parts, idx + 1)
-        case AnyDescendantPart => answer.addAll(node.getDesendentValues)
-        case x:LiteralPart =>
-        case RootPart =>
-      }
-    }
+    val rest = parts.parts.drop(idx)
+    val literal = if( rest.isEmpty ) null else rest.head
+    visit_wildcard_matches(literal, if( rest.isEmpty ) Nil else rest.tail, { value =>
+      answer.add(value)
+      true
+    })
   }
 
   def appendMatchingValues(answer: Set[Value], path: Path, startIndex: Int): Unit = {
-    var node: PathNode[Value] = this
-    var couldMatchAny: Boolean = true
-    var size: Int = path.parts.size;
-    var i: Int = startIndex
-    while (i < size && node != null) {
-      var part: Part = path.parts.get(i)
+    visit_matches(path.parts.drop(startIndex), { value =>
+      answer.add(value)
+      true
+    })
+  }
+
+  /**
+   * Calls the visitor with the values of the nodes which match the
+   * remaining path parts.  A value can be visited more than once if it
+   * matches in more than one way.
+   *
+   * @return false if the visitor asked to stop.
+   */
+  def visit_matches(parts: scala.List[Part], visitor: (Value)=>Boolean): Boolean = parts match {
+    case scala.Nil =>
+      visit_values(visitor) && {
+        val node = any_descendant
+        node==null || node.visit_values(visitor)
+      }
+    case part :: rest =>
       part match {
         case AnyDescendantPart =>
-          answer.addAll(node.getDesendentValues)
-          i += size
-          couldMatchAny = false
+          visit_descendants(visitor)
         case AnyChildPart =>
-          node.appendMatchingWildcards(answer, path, i)
+          visit_wildcard_matches(null, rest, visitor) && visit_children(rest, null, visitor)
+        case RegexChildPart(regex) =>
+          visit_wildcard_matches(null, rest, visitor) && visit_children(rest, regex, visitor)
+        case literal =>
+          visit_wildcard_matches(literal, rest, visitor) && {
+            val node = literal_child(literal)
+            node==null || node.visit_matches(rest, visitor)
+          }
+      }
+  }
+
+  /**
+   * Visits the stored wildcard children which match the literal part.
+   */
+  private def visit_wildcard_matches(literal: Part, rest: scala.List[Part], visitor: (Value)=>Boolean): Boolean = {
+    val any = any_child
+    if( any!=null && !any.visit_matches(rest, visitor) ) {
+      return false
+    }
+    val regexes = regex_children
+    if( regexes!=null ) {
+      var i = 0
+      while( i < regexes.length ) {
+        val node = regexes(i).asInstanceOf[PathMapNode[Value]]
+        val matches = (node.part, literal) match {
+          case (RegexChildPart(regex), LiteralPart(value)) => regex.matcher(value).matches()
+          case _ => true
+        }
+        if( matches && !node.visit_matches(rest, visitor) ) {
+          return false
+        }
+        i += 1
+      }
+    }
+    val descendant = any_descendant
+    descendant==null || descendant.visit_descendants(visitor)
+  }
+
+  /**
+   * Visits all the children, or only the literal children which match
+   * the regex if one is given.
+   */
+  private def visit_children(rest: scala.List[Part], regex: java.util.regex.Pattern, visitor: (Value)=>Boolean): Boolean = {
+    literal_children match {
+      case null =>
+      case nodes:Array[AnyRef] =>
+        var i = 0
+        while( i < nodes.length ) {
+          val node = nodes(i).asInstanceOf[PathMapNode[Value]]
+          if( node.literal_matches(regex) && !node.visit_matches(rest, visitor) ) {
+            return false
+          }
           i += 1
-          node = new AnyChildPathNode[Value](node)
-        case RegexChildPart(r) =>
-          node.appendMatchingWildcards(answer, path, i)
+        }
+      case map:ConcurrentHashMap[_, _] =>
+        val i = map.values.iterator
+        while( i.hasNext ) {
+          val node = i.next.asInstanceOf[PathMapNode[Value]]
+          if( node.literal_matches(regex) && !node.visit_matches(rest, visitor) ) {
+            return false
+          }
+        }
+    }
+    if( regex==null ) {
+      val regexes = regex_children
+      if( regexes!=null ) {
+        var i = 0
+        while( i < regexes.length ) {
+          if( !regexes(i).asInstanceOf[PathMapNode[Value]].visit_matches(rest, visitor) ) {
+            return false
+          }
           i += 1
-          node = new RegexChildPathNode[Value](node, r)
-        case x:LiteralPart =>
-          node.appendMatchingWildcards(answer, path, i)
-          i += 1;
-          node = node.getChild(part)
-        case RootPart =>
+        }
+      }
+      val any = any_child
+      if( any!=null && !any.visit_matches(rest, visitor) ) {
+        return false
+      }
+      val descendant = any_descendant
+      if( descendant!=null && !descendant.visit_matches(rest, visitor) ) {
+        return false
       }
     }
-    if (node != null) {
-      answer.addAll(node.getValues)
-      if (couldMatchAny) {
-        var child: PathNode[Value] = node.getChild(AnyDescendantPart)
-        if (child != null) {
-          answer.addAll(child.getValues)
+    true
+  }
+
+  private def literal_matches(regex: java.util.regex.Pattern) = regex == null || (part match {
+    case LiteralPart(value) => regex.matcher(value).matches()
+    case _ => false
+  })
+
+  private def visit_values(visitor: (Value)=>Boolean): Boolean = {
+    val values = value_array
+    if( values!=null ) {
+      var i = 0
+      while( i < values.length ) {
+        if( !visitor(values(i).asInstanceOf[Value]) ) {
+          return false
+        }
+        i += 1
+      }
+    }
+    true
+  }
+
+  private def visit_descendants(visitor: (Value)=>Boolean): Boolean = {
+    if( !visit_values(visitor) ) {
+      return false
+    }
+    literal_children match {
+      case null =>
+      case nodes:Array[AnyRef] =>
+        var i = 0
+        while( i < nodes.length ) {
+          if( !nodes(i).asInstanceOf[PathMapNode[Value]].visit_descendants(visitor) ) {
+            return false
+          }
+          i += 1
+        }
+      case map:ConcurrentHashMap[_, _] =>
+        val i = map.values.iterator
+        while( i.hasNext ) {
+          if( !i.next.asInstanceOf[PathMapNode[Value]].visit_descendants(visitor) ) {
+            return false
+          }
         }
+    }
+    val regexes = regex_children
+    if( regexes!=null ) {
+      var i = 0
+      while( i < regexes.length ) {
+        if( !regexes(i).asInstanceOf[PathMapNode[Value]].visit_descendants(visitor) ) {
+          return false
+        }
+        i += 1
       }
     }
+    val any = any_child
+    if( any!=null && !any.visit_descendants(visitor) ) {
+      return false
+    }
+    val descendant = any_descendant
+    descendant==null || descendant.visit_descendants(visitor)
   }
 
   def getPart: Part = {
@@ -235,14 +570,9 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
   }
 
   protected def pruneIfEmpty: Unit = {
-    if (parent != null && childNodes.isEmpty && values.isEmpty) {
+    if (parent != null && getChildCount==0 && value_array==null) {
       parent.removeChild(this)
     }
   }
 
-  protected def removeChild(node: PathMapNode[Value]): Unit = {
-    childNodes.remove(node.getPart)
-    pruneIfEmpty
-  }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShortBitSetTest {
+
+    @Test()
+    public void testAddRemove() throws Exception {
+        ShortBitSet set = new ShortBitSet();
+        assertTrue(set.add(1));
+        assertFalse(set.add(1));
+        assertTrue(set.add((short) -1));
+        assertTrue(set.contains(0xFFFF));
+        assertEquals(2, set.size());
+        assertTrue(set.remove(1));
+        assertFalse(set.remove(1));
+        assertFalse(set.contains(1));
+        assertArrayEquals(new int[]{0xFFFF}, set.toArray());
+    }
+
+    @Test()
+    public void testAgainstTreeSet() throws Exception {
+        ShortBitSet set = new ShortBitSet();
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            int value = random.nextInt(0x10000);
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(value), set.add(value));
+            } else {
+                assertEquals(expected.remove(value), set.remove(value));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        int[] values = set.toArray();
+        assertEquals(expected.size(), values.length);
+        int i = 0;
+        for (Integer value : expected) {
+            assertEquals(value.intValue(), values[i++]);
+            assertTrue(set.contains(value));
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import java.util.concurrent.atomic.AtomicInteger
+
+class TimerWheelTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("timeouts fire once and cancelled ones don't fire") {
+    val wheel = new TimerWheel("test wheel", 10, 8)
+    val fired = new AtomicInteger()
+    val done = new CountDownLatch(2)
+
+    // longer than a lap of the wheel.
+    wheel.schedule(200) {
+      fired.incrementAndGet()
+      done.countDown()
+    }
+    wheel.schedule(20) {
+      fired.incrementAndGet()
+      done.countDown()
+    }
+    val cancelled = wheel.schedule(30) {
+      fired.incrementAndGet()
+    }
+    cancelled.cancel
+
+    done.await(5, TimeUnit.SECONDS) should be(true)
+    Thread.sleep(100)
+    fired.get should be(2)
+  }
+
+  test("deadlines follow the clock after the wheel was idle") {
+    val wheel = new TimerWheel("test wheel", 10, 8)
+    val done = new CountDownLatch(1)
+    wheel.schedule(10) {
+      done.countDown()
+    }
+    done.await(5, TimeUnit.SECONDS) should be(true)
+
+    // the wheel stops ticking while nothing is scheduled.
+    Thread.sleep(200)
+    val start = System.currentTimeMillis()
+    val timeout = wheel.schedule(50) {}
+    timeout.deadline should be >= (start + 50)
+  }
+
+}
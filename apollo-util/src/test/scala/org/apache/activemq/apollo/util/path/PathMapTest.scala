@@ -251,6 +251,29 @@ class PathMapTest {
     assertMapValue(map, "FOO.**", v2)
   }
 
+  @Test def testWideFanOut: Unit = {
+    var map: PathMap[String] = new PathMap[String]
+    for (i <- 0 until 100) {
+      put(map, "devices." + i + ".cmd", "device" + i)
+    }
+    put(map, "devices.*.cmd", v1)
+    assertMapValue(map, "devices.42.cmd", v1, "device42")
+    assertEquals(101, map.get(createDestination("devices.*.cmd")).size)
+    assertEquals(Some(v1), map.first_match(createDestination("devices.1000.cmd")))
+    assertEquals(None, map.first_match(createDestination("devices.1000.status")))
+
+    val devices = map.getRootNode.getChild(LiteralPart("devices"))
+    assertTrue("parts are shared", devices.getChild(LiteralPart("1")).getChild(LiteralPart("cmd")).getPart eq
+            devices.getChild(LiteralPart("2")).getChild(LiteralPart("cmd")).getPart)
+
+    for (i <- 0 until 100) {
+      remove(map, "devices." + i + ".cmd", "device" + i)
+    }
+    assertEquals(1, devices.getChildCount)
+    remove(map, "devices.*.cmd", v1)
+    assertEquals("Root child count", 0, map.getRootNode.getChildCount)
+  }
+
   protected def loadSample2(map: PathMap[String]): Unit = {
     put(map, "TEST.FOO", v1)
     put(map, "TEST.*", v2)